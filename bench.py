@@ -0,0 +1,221 @@
+import requests
+import urllib.parse
+import sys
+import time
+import statistics
+import logging
+import threading
+import concurrent.futures
+import math
+import random
+
+# optional: only needed for the HTTP/2 runs
+try:
+    import httpx
+except ImportError:
+    httpx = None
+
+FULL_SELECT = "SELECT * WHERE { ?s ?p ?o }"
+FULL_CONSTRUCT = "CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }"
+
+# where the cars are: central London
+SPATIAL_CENTRE = (51.5074, -0.1278)
+SPATIAL_SPREAD_DEGREES = 0.2
+SPATIAL_RADIUS_KM = 2
+
+SPATIAL_INDEXED = """PREFIX spatial: <http://smartrics.iotics/spatial#>
+SELECT ?geometry WHERE {{ ?geometry spatial:nearby ({lat} {lon} {km}) }}"""
+
+# the same question without the index: parse every geo:asWKT literal and filter on an equirectangular distance
+SPATIAL_SCAN = """PREFIX geo: <http://www.opengis.net/ont/geosparql#>
+PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>
+SELECT ?geometry WHERE {{
+    ?geometry geo:asWKT ?wkt .
+    BIND(xsd:double(STRBEFORE(STRAFTER(STR(?wkt), "POINT("), " ")) AS ?lon)
+    BIND(xsd:double(STRBEFORE(STRAFTER(STRAFTER(STR(?wkt), "POINT("), " "), ")")) AS ?lat)
+    FILTER((?lat - ({lat})) * (?lat - ({lat})) * 12392.1 + (?lon - ({lon})) * (?lon - ({lon})) * {lon_factor} <= {km} * {km})
+}}"""
+
+
+def setup_logging():
+    logger = logging.getLogger("SPARQLBench")
+    logger.setLevel(logging.INFO)
+    console_handler = logging.StreamHandler()
+    console_handler.setFormatter(logging.Formatter('%(asctime)s - %(name)s - %(levelname)s - %(message)s'))
+    logger.addHandler(console_handler)
+    return logger
+
+
+def percentile(values, p):
+    ordered = sorted(values)
+    return ordered[min(len(ordered) - 1, int(round(p / 100.0 * (len(ordered) - 1))))]
+
+
+def report(logger, name, latencies, wire_bytes):
+    logger.info(f"{name}: n={len(latencies)} "
+                f"p50={percentile(latencies, 50) * 1000:.1f}ms p95={percentile(latencies, 95) * 1000:.1f}ms "
+                f"mean={statistics.mean(latencies) * 1000:.1f}ms wire={statistics.mean(wire_bytes) / 1024:.1f}KiB")
+
+
+def fetch_http1(session, url, accept, encoding):
+    start = time.perf_counter()
+    response = session.get(url, headers={"Accept": accept, "Accept-Encoding": encoding}, stream=True)
+    # raw bytes as they came over the wire, before any decoding
+    body = response.raw.read(decode_content=False)
+    elapsed = time.perf_counter() - start
+    response.raise_for_status()
+    return elapsed, len(body)
+
+
+def fetch_http2(client, url, accept, encoding):
+    start = time.perf_counter()
+    with client.stream("GET", url, headers={"Accept": accept, "Accept-Encoding": encoding}) as response:
+        size = sum(len(chunk) for chunk in response.iter_raw())
+    elapsed = time.perf_counter() - start
+    response.raise_for_status()
+    return elapsed, size
+
+
+def bench_compression(endpoint_url, iterations, logger):
+    """Bandwidth and latency of large results with and without compression, over HTTP/1.1 and HTTP/2."""
+    cases = [
+        ("select json", FULL_SELECT, "application/sparql-results+json"),
+        ("select xml", FULL_SELECT, "application/sparql-results+xml"),
+        ("construct turtle", FULL_CONSTRUCT, "text/turtle"),
+    ]
+    session = requests.Session()
+    client = httpx.Client(http2=True, http1=False, timeout=60) if httpx else None
+    if client is None:
+        logger.warning("httpx not installed (pip install 'httpx[http2]'): skipping HTTP/2 runs")
+
+    for name, query, accept in cases:
+        url = f"{endpoint_url}?query={urllib.parse.quote(query)}"
+        for encoding in ["identity", "gzip", "deflate", "br"]:
+            runs = [fetch_http1(session, url, accept, encoding) for _ in range(iterations)]
+            report(logger, f"{name} http/1.1 {encoding}", [r[0] for r in runs], [r[1] for r in runs])
+            if client is not None:
+                runs = [fetch_http2(client, url, accept, encoding) for _ in range(iterations)]
+                report(logger, f"{name} h2c {encoding}", [r[0] for r in runs], [r[1] for r in runs])
+
+
+def bench_throughput(endpoint_url, iterations, logger):
+    """Requests/sec of small queries at increasing client concurrency.
+
+    Run it once per server configuration, e.g. SPARQL_VERTICLE_INSTANCES=1, 2, 4, <cores>,
+    and compare: with a single instance every connection is served by one event loop.
+    Each level runs for `iterations` seconds.
+
+    Admission control limits each client key (ADMISSION_CLIENT_RATE, 20/s by default), so every worker sends its
+    own key; to measure the endpoint rather than the limiter, start the server with ADMISSION_CLIENT_RATE=0 and
+    ADMISSION_MAX_CONCURRENT=0. Only 2xx answers count towards req/s; the others are reported by status.
+    """
+    url = f"{endpoint_url}?query={urllib.parse.quote('ASK { ?s ?p ?o }')}"
+    local = threading.local()
+
+    def worker(deadline, key):
+        if not hasattr(local, "session"):
+            local.session = requests.Session()
+        headers = {"Accept": "application/sparql-results+json", "X-Api-Key": key}
+        done = 0
+        refused = {}
+        latencies = []
+        while time.perf_counter() < deadline:
+            start = time.perf_counter()
+            response = local.session.get(url, headers=headers)
+            elapsed = time.perf_counter() - start
+            if 200 <= response.status_code < 300:
+                done += 1
+                latencies.append(elapsed)
+            else:
+                refused[response.status_code] = refused.get(response.status_code, 0) + 1
+        return done, refused, latencies
+
+    for clients in [1, 4, 16, 64]:
+        deadline = time.perf_counter() + iterations
+        keys = [f"bench-throughput-{clients}-{i}" for i in range(clients)]
+        with concurrent.futures.ThreadPoolExecutor(max_workers=clients) as executor:
+            results = list(executor.map(worker, [deadline] * clients, keys))
+        done = sum(r[0] for r in results)
+        refused = {}
+        for r in results:
+            for status, count in r[1].items():
+                refused[status] = refused.get(status, 0) + count
+        latencies = [latency for r in results for latency in r[2]]
+        line = f"clients={clients}: {done / iterations:.0f} req/s"
+        if latencies:
+            line += f" p50={percentile(latencies, 50) * 1000:.1f}ms p99={percentile(latencies, 99) * 1000:.1f}ms"
+        if refused:
+            line += " non-2xx=" + ",".join(f"{status}:{count}" for status, count in sorted(refused.items()))
+        logger.info(line)
+        if 429 in refused or 503 in refused:
+            logger.warning(f"clients={clients}: requests turned away by admission control; req/s is capped by it")
+
+
+def bench_formats(endpoint_url, iterations, logger):
+    """Serialisation throughput and size of a full SELECT in each tuple results format, uncompressed."""
+    session = requests.Session()
+    url = f"{endpoint_url}?query={urllib.parse.quote(FULL_SELECT)}"
+    for accept in ["application/sparql-results+json", "application/sparql-results+xml", "text/csv",
+                   "application/x-binary-rdf-results-table"]:
+        runs = [fetch_http1(session, url, accept, "identity") for _ in range(iterations)]
+        report(logger, accept, [r[0] for r in runs], [r[1] for r in runs])
+        mean_bytes = statistics.mean(r[1] for r in runs)
+        mean_seconds = statistics.mean(r[0] for r in runs)
+        logger.info(f"{accept}: {mean_bytes / mean_seconds / (1024 * 1024):.1f} MiB/s")
+
+
+def bench_spatial(endpoint_url, iterations, logger):
+    """Radius queries answered by the spatial index against the same query as a full scan of the WKT literals.
+
+    Load the store with many moving cars first (e.g. 100k); each iteration picks a new random centre,
+    so no answer comes from the result cache.
+    """
+    session = requests.Session()
+    rng = random.Random(42)
+    centres = [(SPATIAL_CENTRE[0] + rng.uniform(-SPATIAL_SPREAD_DEGREES, SPATIAL_SPREAD_DEGREES),
+                SPATIAL_CENTRE[1] + rng.uniform(-SPATIAL_SPREAD_DEGREES, SPATIAL_SPREAD_DEGREES)) for _ in range(iterations)]
+    for name, template in [("indexed", SPATIAL_INDEXED), ("full scan", SPATIAL_SCAN)]:
+        latencies = []
+        rows = []
+        for lat, lon in centres:
+            # km per degree of longitude, squared, at this latitude
+            lon_factor = (111.32 * math.cos(math.radians(lat))) ** 2
+            query = template.format(lat=f"{lat:.6f}", lon=f"{lon:.6f}", km=SPATIAL_RADIUS_KM, lon_factor=f"{lon_factor:.1f}")
+            start = time.perf_counter()
+            # POSTed as is: the filter's '+' must not go through URL decoding
+            response = session.post(endpoint_url, data=query.encode("utf-8"),
+                                     headers={"Accept": "text/csv", "Content-Type": "application/sparql-query"})
+            latencies.append(time.perf_counter() - start)
+            response.raise_for_status()
+            rows.append(response.text.count("\n") - 1)
+        logger.info(f"{name}: n={len(latencies)} p50={percentile(latencies, 50) * 1000:.1f}ms "
+                    f"p95={percentile(latencies, 95) * 1000:.1f}ms mean rows={statistics.mean(rows):.0f}")
+
+
+SCENARIOS = {
+    "compression": bench_compression,
+    "throughput": bench_throughput,
+    "formats": bench_formats,
+    "spatial": bench_spatial,
+}
+
+
+def main():
+    if len(sys.argv) < 2 or len(sys.argv) > 4:
+        print(f"Usage: python bench.py <endpoint_url> [<scenario: {'|'.join(SCENARIOS)}|all>] [<iterations>]")
+        sys.exit(1)
+
+    logger = setup_logging()
+
+    endpoint_url = sys.argv[1]
+    scenario = sys.argv[2] if len(sys.argv) >= 3 else "all"
+    iterations = int(sys.argv[3]) if len(sys.argv) == 4 else 20
+
+    for name, func in SCENARIOS.items():
+        if scenario in ("all", name):
+            logger.info(f"--- {name}")
+            func(endpoint_url, iterations, logger)
+
+
+if __name__ == "__main__":
+    main()
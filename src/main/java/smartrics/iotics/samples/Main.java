@@ -1,7 +1,16 @@
 package smartrics.iotics.samples;
 
-import io.vertx.core.Verticle;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.util.Values;
+import org.eclipse.rdf4j.model.vocabulary.RDFS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.greenrobot.eventbus.EventBus;
@@ -18,14 +27,34 @@ import smartrics.iotics.identity.jna.JnaSdkApiInitialiser;
 import smartrics.iotics.identity.jna.OsLibraryPathResolver;
 import smartrics.iotics.identity.jna.SdkApi;
 import smartrics.iotics.samples.cars.CarDigitalTwinLoader;
+import smartrics.iotics.samples.cars.Sem;
+import smartrics.iotics.samples.http.AccessLogHandler;
+import smartrics.iotics.samples.http.AdmissionController;
 import smartrics.iotics.samples.http.Database;
+import smartrics.iotics.samples.http.FeedHistory;
+import smartrics.iotics.samples.http.FeedHistoryFunctions;
+import smartrics.iotics.samples.http.ParsedQueryCache;
+import smartrics.iotics.samples.http.QueryCoalescer;
+import smartrics.iotics.samples.http.QueryExecutor;
+import smartrics.iotics.samples.http.QueryLimits;
+import smartrics.iotics.samples.http.ResultCache;
+import smartrics.iotics.samples.http.SlowQueryLog;
 import smartrics.iotics.samples.http.SparqlEndpoint;
+import smartrics.iotics.samples.http.SpatialIndex;
+import smartrics.iotics.samples.http.StoreBackend;
+import smartrics.iotics.samples.http.SubscriptionManager;
+import smartrics.iotics.samples.http.TextIndex;
+import smartrics.iotics.samples.http.WriteMode;
 
 import java.io.*;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class Main {
     private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
@@ -39,6 +68,53 @@ public class Main {
     private final static String ENV_AGENT_CONF_JSON = "AGENT_CONF_JSON";
     private final static String ENV_SPARQL_PORT = "SPARQL_PORT";
     private final static String ENV_SPARQL_SECURE_PORT = "SPARQL_SECURE_PORT";
+    private final static String ENV_SPARQL_QUERY_THREADS = "SPARQL_QUERY_THREADS";
+    private final static String ENV_SPARQL_QUERY_QUEUE = "SPARQL_QUERY_QUEUE";
+    private final static String ENV_SPARQL_QUERY_VIRTUAL_THREADS = "SPARQL_QUERY_VIRTUAL_THREADS";
+    private final static String ENV_QUERY_CACHE_SIZE = "QUERY_CACHE_SIZE";
+    private final static String ENV_QUERY_CACHE_MAX_QUERY_LENGTH = "QUERY_CACHE_MAX_QUERY_LENGTH";
+    private final static String ENV_QUERY_CACHE_ADMIT_ON_SECOND_USE = "QUERY_CACHE_ADMIT_ON_SECOND_USE";
+    private final static String ENV_RESULT_CACHE_MAX_BYTES = "RESULT_CACHE_MAX_BYTES";
+    private final static String ENV_RESULT_CACHE_MAX_ENTRY_BYTES = "RESULT_CACHE_MAX_ENTRY_BYTES";
+    private final static String ENV_RESULT_CACHE_MAX_STALE_EPOCHS = "RESULT_CACHE_MAX_STALE_EPOCHS";
+    private final static String ENV_DB_COMMIT_WINDOW_MS = "DB_COMMIT_WINDOW_MS";
+    private final static String ENV_DB_COMMIT_MAX_BATCH = "DB_COMMIT_MAX_BATCH";
+    private final static String ENV_DB_WRITE_MODE = "DB_WRITE_MODE";
+    private final static String ENV_DB_BACKEND = "DB_BACKEND";
+    private final static String ENV_DB_DATA_DIR = "DB_DATA_DIR";
+    private final static String ENV_DB_SYNC_DELAY_MS = "DB_SYNC_DELAY_MS";
+    private final static String ENV_DB_SNAPSHOT_FILE = "DB_SNAPSHOT_FILE";
+    private final static String ENV_DB_SNAPSHOT_PERIOD_SECONDS = "DB_SNAPSHOT_PERIOD_SECONDS";
+    private final static String ENV_ACCESS_LOG_HEADERS = "ACCESS_LOG_HEADERS";
+    private final static String ENV_ACCESS_LOG_SAMPLE_RATE = "ACCESS_LOG_SAMPLE_RATE";
+    private final static String ENV_SHARE_LOG_SAMPLE_RATE = "SHARE_LOG_SAMPLE_RATE";
+    private final static String ENV_HTTP_COMPRESSION_LEVEL = "HTTP_COMPRESSION_LEVEL";
+    private final static String ENV_HTTP_COMPRESSION_MIN_BYTES = "HTTP_COMPRESSION_MIN_BYTES";
+    private final static String ENV_HTTP_COMPRESSION_BROTLI = "HTTP_COMPRESSION_BROTLI";
+    private final static String ENV_HTTP2_ENABLED = "HTTP2_ENABLED";
+    private final static String ENV_SPARQL_VERTICLE_INSTANCES = "SPARQL_VERTICLE_INSTANCES";
+    private final static String ENV_VERTX_NATIVE_TRANSPORT = "VERTX_NATIVE_TRANSPORT";
+    private final static String ENV_SUBSCRIPTIONS_MAX = "SUBSCRIPTIONS_MAX";
+    private final static String ENV_SUBSCRIPTION_MAX_ROWS = "SUBSCRIPTION_MAX_ROWS";
+    private final static String ENV_SUBSCRIPTION_THREADS = "SUBSCRIPTION_THREADS";
+    private final static String ENV_FEED_HISTORY_RETENTION_MINUTES = "FEED_HISTORY_RETENTION_MINUTES";
+    private final static String ENV_FEED_HISTORY_MAX_SAMPLES = "FEED_HISTORY_MAX_SAMPLES";
+    private final static String ENV_SPATIAL_INDEX_ENABLED = "SPATIAL_INDEX_ENABLED";
+    private final static String ENV_SPATIAL_INDEX_CELL_DEGREES = "SPATIAL_INDEX_CELL_DEGREES";
+    private final static String ENV_TEXT_INDEX_PREDICATES = "TEXT_INDEX_PREDICATES";
+    private final static String ENV_SLOW_QUERY_THRESHOLD_MS = "SLOW_QUERY_THRESHOLD_MS";
+    private final static String ENV_SLOW_QUERY_LOG_SIZE = "SLOW_QUERY_LOG_SIZE";
+    private final static String ENV_QUERY_TIMEOUT_SECONDS = "QUERY_TIMEOUT_SECONDS";
+    private final static String ENV_QUERY_MAX_ROWS = "QUERY_MAX_ROWS";
+    private final static String ENV_QUERY_MAX_BYTES = "QUERY_MAX_BYTES";
+    private final static String ENV_ADMISSION_CLIENT_HEADER = "ADMISSION_CLIENT_HEADER";
+    private final static String ENV_ADMISSION_CLIENT_RATE = "ADMISSION_CLIENT_RATE";
+    private final static String ENV_ADMISSION_CLIENT_BURST = "ADMISSION_CLIENT_BURST";
+    private final static String ENV_ADMISSION_MAX_CONCURRENT = "ADMISSION_MAX_CONCURRENT";
+    private final static String ENV_ADMISSION_PRIORITY_SLOTS = "ADMISSION_PRIORITY_SLOTS";
+    private final static String ENV_ADMISSION_MAX_CLIENTS = "ADMISSION_MAX_CLIENTS";
+    private final static String ENV_HTTP_CACHE_MAX_AGE_SECONDS = "HTTP_CACHE_MAX_AGE_SECONDS";
+    private final static String ENV_QUERY_COALESCING_MAX_REPLAY_BYTES = "QUERY_COALESCING_MAX_REPLAY_BYTES";
 
     public static void main(String[] args) throws IOException {
         boolean shareOnly = Boolean.parseBoolean(Optional.ofNullable(System.getenv(ENV_SHARE_ONLY)).orElse("false"));
@@ -50,20 +126,139 @@ public class Main {
         String agentIdPath = Optional.ofNullable(System.getenv(ENV_AGENT_CONF_JSON)).orElse("src/main/resources/identity/demoAgent.json");
         String httpPort = Optional.ofNullable(System.getenv(ENV_SPARQL_PORT)).orElse("8080");
         String httpsPort = Optional.ofNullable(System.getenv(ENV_SPARQL_SECURE_PORT)).orElse("8443");
+        int queryThreads = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_SPARQL_QUERY_THREADS)).orElse(String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int queryQueue = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_SPARQL_QUERY_QUEUE)).orElse("64"));
+        boolean queryVirtualThreads = Boolean.parseBoolean(Optional.ofNullable(System.getenv(ENV_SPARQL_QUERY_VIRTUAL_THREADS)).orElse("false"));
+        int queryCacheSize = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_QUERY_CACHE_SIZE)).orElse("256"));
+        int queryCacheMaxQueryLength = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_QUERY_CACHE_MAX_QUERY_LENGTH)).orElse("16384"));
+        boolean queryCacheAdmitOnSecondUse = Boolean.parseBoolean(Optional.ofNullable(System.getenv(ENV_QUERY_CACHE_ADMIT_ON_SECOND_USE)).orElse("false"));
+        long resultCacheMaxBytes = Long.parseLong(Optional.ofNullable(System.getenv(ENV_RESULT_CACHE_MAX_BYTES)).orElse("67108864"));
+        int resultCacheMaxEntryBytes = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_RESULT_CACHE_MAX_ENTRY_BYTES)).orElse("4194304"));
+        long resultCacheMaxStaleEpochs = Long.parseLong(Optional.ofNullable(System.getenv(ENV_RESULT_CACHE_MAX_STALE_EPOCHS)).orElse("0"));
+        long commitWindowMillis = Long.parseLong(Optional.ofNullable(System.getenv(ENV_DB_COMMIT_WINDOW_MS)).orElse("20"));
+        int commitMaxBatch = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_DB_COMMIT_MAX_BATCH)).orElse("1000"));
+        WriteMode writeMode = WriteMode.valueOf(Optional.ofNullable(System.getenv(ENV_DB_WRITE_MODE)).orElse("DELTA").toUpperCase());
+        StoreBackend storeBackend = StoreBackend.valueOf(Optional.ofNullable(System.getenv(ENV_DB_BACKEND)).orElse("MEMORY").toUpperCase());
+        String dataDir = Optional.ofNullable(System.getenv(ENV_DB_DATA_DIR)).orElse("data/store");
+        long syncDelayMillis = Long.parseLong(Optional.ofNullable(System.getenv(ENV_DB_SYNC_DELAY_MS)).orElse("1000"));
+        Optional<String> snapshotFile = Optional.ofNullable(System.getenv(ENV_DB_SNAPSHOT_FILE));
+        long snapshotPeriodSeconds = Long.parseLong(Optional.ofNullable(System.getenv(ENV_DB_SNAPSHOT_PERIOD_SECONDS)).orElse("300"));
+        String accessLogHeaders = Optional.ofNullable(System.getenv(ENV_ACCESS_LOG_HEADERS)).orElse("accept,user-agent");
+        double accessLogSampleRate = Double.parseDouble(Optional.ofNullable(System.getenv(ENV_ACCESS_LOG_SAMPLE_RATE)).orElse("1.0"));
+        double shareLogSampleRate = Double.parseDouble(Optional.ofNullable(System.getenv(ENV_SHARE_LOG_SAMPLE_RATE)).orElse("0.01"));
+        int compressionLevel = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_HTTP_COMPRESSION_LEVEL)).orElse("6"));
+        int compressionMinBytes = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_HTTP_COMPRESSION_MIN_BYTES)).orElse("1024"));
+        boolean compressionBrotli = Boolean.parseBoolean(Optional.ofNullable(System.getenv(ENV_HTTP_COMPRESSION_BROTLI)).orElse("false"));
+        boolean http2 = Boolean.parseBoolean(Optional.ofNullable(System.getenv(ENV_HTTP2_ENABLED)).orElse("true"));
+        int verticleInstances = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_SPARQL_VERTICLE_INSTANCES)).orElse(String.valueOf(Runtime.getRuntime().availableProcessors())));
+        boolean nativeTransport = Boolean.parseBoolean(Optional.ofNullable(System.getenv(ENV_VERTX_NATIVE_TRANSPORT)).orElse("true"));
+        int maxSubscriptions = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_SUBSCRIPTIONS_MAX)).orElse("256"));
+        int subscriptionMaxRows = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_SUBSCRIPTION_MAX_ROWS)).orElse("10000"));
+        int subscriptionThreads = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_SUBSCRIPTION_THREADS)).orElse(String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 4))));
+        long historyRetentionMinutes = Long.parseLong(Optional.ofNullable(System.getenv(ENV_FEED_HISTORY_RETENTION_MINUTES)).orElse("60"));
+        // enough for the retention at the shortest share period the scheduler produces
+        long historyDefaultSamples = historyRetentionMinutes * 60 / Math.max(1, sharePeriodSec - sharePeriodSec / 2) + 1;
+        int historyMaxSamples = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_FEED_HISTORY_MAX_SAMPLES)).orElse(String.valueOf(historyDefaultSamples)));
+        boolean spatialIndexEnabled = Boolean.parseBoolean(Optional.ofNullable(System.getenv(ENV_SPATIAL_INDEX_ENABLED)).orElse("true"));
+        double spatialIndexCellDegrees = Double.parseDouble(Optional.ofNullable(System.getenv(ENV_SPATIAL_INDEX_CELL_DEGREES)).orElse("0.01"));
+        // comma separated predicate IRIs; empty disables the text index
+        String textIndexPredicates = Optional.ofNullable(System.getenv(ENV_TEXT_INDEX_PREDICATES)).orElse(
+                String.join(",", RDFS.LABEL.stringValue(), Sem.MANUFACTURER_NAME.stringValue(), Sem.MODEL.stringValue(), Sem.COLOUR.stringValue()));
+        long slowQueryThresholdMillis = Long.parseLong(Optional.ofNullable(System.getenv(ENV_SLOW_QUERY_THRESHOLD_MS)).orElse("1000"));
+        int slowQueryLogSize = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_SLOW_QUERY_LOG_SIZE)).orElse("100"));
+        int queryTimeoutSeconds = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_QUERY_TIMEOUT_SECONDS)).orElse("60"));
+        long queryMaxRows = Long.parseLong(Optional.ofNullable(System.getenv(ENV_QUERY_MAX_ROWS)).orElse("1000000"));
+        long queryMaxBytes = Long.parseLong(Optional.ofNullable(System.getenv(ENV_QUERY_MAX_BYTES)).orElse("268435456"));
+        String admissionClientHeader = Optional.ofNullable(System.getenv(ENV_ADMISSION_CLIENT_HEADER)).orElse("X-Api-Key");
+        double admissionClientRate = Double.parseDouble(Optional.ofNullable(System.getenv(ENV_ADMISSION_CLIENT_RATE)).orElse("20"));
+        int admissionClientBurst = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_ADMISSION_CLIENT_BURST)).orElse("40"));
+        // running plus queued below the executor's capacity, so admitted queries are not turned away there
+        int admissionMaxConcurrent = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_ADMISSION_MAX_CONCURRENT)).orElse(String.valueOf(queryThreads + queryQueue / 2)));
+        int admissionPrioritySlots = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_ADMISSION_PRIORITY_SLOTS)).orElse("2"));
+        int admissionMaxClients = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_ADMISSION_MAX_CLIENTS)).orElse("10000"));
+        // a twin's values are at most one share period old anyway
+        long httpCacheMaxAgeSeconds = Long.parseLong(Optional.ofNullable(System.getenv(ENV_HTTP_CACHE_MAX_AGE_SECONDS)).orElse(String.valueOf(sharePeriodSec)));
+        int coalescingMaxReplayBytes = Integer.parseInt(Optional.ofNullable(System.getenv(ENV_QUERY_COALESCING_MAX_REPLAY_BYTES)).orElse("4194304"));
 
         EventBus eventBus = EventBus.getDefault();
-        Database database = new Database();
+        PrometheusMeterRegistry meterRegistry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        new JvmMemoryMetrics().bindTo(meterRegistry);
+        new JvmGcMetrics().bindTo(meterRegistry);
+        new JvmThreadMetrics().bindTo(meterRegistry);
+
+        QueryLimits queryLimits = new QueryLimits(queryTimeoutSeconds, queryMaxRows, queryMaxBytes);
+        queryLimits.bindTo(meterRegistry);
+        QueryCoalescer queryCoalescer = new QueryCoalescer(coalescingMaxReplayBytes);
+        queryCoalescer.bindTo(meterRegistry);
+        Database.DatabaseBuilder databaseBuilder = Database.DatabaseBuilder.aDatabase()
+                .withParsedQueryCache(new ParsedQueryCache(queryCacheSize, queryCacheMaxQueryLength, queryCacheAdmitOnSecondUse))
+                .withResultCache(new ResultCache(resultCacheMaxBytes, resultCacheMaxEntryBytes, resultCacheMaxStaleEpochs))
+                .withGroupCommit(commitWindowMillis, commitMaxBatch)
+                .withWriteMode(writeMode)
+                .withStore(storeBackend, Path.of(dataDir), syncDelayMillis)
+                .withSnapshots(snapshotFile.map(Path::of).orElse(null), snapshotPeriodSeconds)
+                .withMeterRegistry(meterRegistry)
+                .withSlowQueryLog(new SlowQueryLog(slowQueryThresholdMillis, slowQueryLogSize))
+                .withQueryLimits(queryLimits)
+                .withCacheMaxAge(httpCacheMaxAgeSeconds)
+                .withCoalescer(queryCoalescer);
+        if (spatialIndexEnabled) {
+            SpatialIndex spatialIndex = new SpatialIndex(spatialIndexCellDegrees);
+            spatialIndex.bindTo(meterRegistry);
+            databaseBuilder.withMagicPredicate(spatialIndex);
+        }
+        Set<IRI> textPredicates = Arrays.stream(textIndexPredicates.split(","))
+                .map(String::trim)
+                .filter(p -> !p.isEmpty())
+                .map(Values::iri)
+                .collect(Collectors.toSet());
+        if (!textPredicates.isEmpty()) {
+            TextIndex textIndex = new TextIndex(textPredicates);
+            textIndex.bindTo(meterRegistry);
+            databaseBuilder.withMagicPredicate(textIndex);
+        }
+        Database database = databaseBuilder.build();
+        Runtime.getRuntime().addShutdownHook(new Thread(database::shutdown));
 
         // Create an instance of Vertx
-        Vertx vertx = Vertx.vertx();
+        Vertx vertx = Vertx.vertx(new VertxOptions().setPreferNativeTransport(nativeTransport));
+        if (nativeTransport && !vertx.isNativeTransportEnabled()) {
+            LOGGER.warn("Native transport not available, using NIO", vertx.unavailableNativeTransportCause());
+        }
+
+        QueryExecutor queryExecutor = new QueryExecutor("query", queryThreads, queryQueue, queryVirtualThreads);
+        queryExecutor.bindTo(meterRegistry);
+        // re-evaluations don't compete with requests for the query executor the admission limit is sized on;
+        // a subscription has at most one pending, so room for all of them means none is ever turned away
+        QueryExecutor subscriptionExecutor = new QueryExecutor("subscription", subscriptionThreads, maxSubscriptions, queryVirtualThreads);
+        subscriptionExecutor.bindTo(meterRegistry);
+        SubscriptionManager subscriptions = SubscriptionManager.create(database, subscriptionExecutor, maxSubscriptions, subscriptionMaxRows);
+        FeedHistory feedHistory = new FeedHistory(TimeUnit.MINUTES.toMillis(historyRetentionMinutes), historyMaxSamples);
+        feedHistory.bindTo(meterRegistry);
+        FeedHistoryFunctions.register(feedHistory);
+        AdmissionController admission = new AdmissionController(admissionClientHeader, admissionClientRate, admissionClientBurst,
+                admissionMaxConcurrent, admissionPrioritySlots, admissionMaxClients);
+        admission.bindTo(meterRegistry);
 
-        // Create an instance of your Verticle
-        Verticle sparqlEndpointVerticle = new SparqlEndpoint(httpPort, httpsPort, database);
+        // One verticle per instance, each on its own event loop; the HTTP servers share the ports
+        // and all instances share the database, executor and registry
+        SparqlEndpoint.SparqlEndpointBuilder sparqlEndpoint = SparqlEndpoint.SparqlEndpointBuilder.aSparqlEndpoint()
+                .withHttpPort(httpPort)
+                .withHttpSecurePort(httpsPort)
+                .withDatabase(database)
+                .withQueryExecutor(queryExecutor)
+                .withSubscriptions(subscriptions)
+                .withFeedHistory(feedHistory)
+                .withAdmission(admission)
+                .withMeterRegistry(meterRegistry)
+                .withAccessLog(new AccessLogHandler(List.of(accessLogHeaders.split(",")), accessLogSampleRate))
+                .withCompression(compressionLevel, compressionMinBytes, compressionBrotli)
+                .withHttp2(http2);
 
         // Deploy the Verticle
-        vertx.deployVerticle(sparqlEndpointVerticle, res -> {
+        vertx.deployVerticle(sparqlEndpoint::build, new DeploymentOptions().setInstances(verticleInstances), res -> {
             if (res.succeeded()) {
-                LOGGER.info("Deployment id is: {}", res.result());
+                LOGGER.info("Deployment id is: {} [instances={}][nativeTransport={}]", res.result(), verticleInstances, vertx.isNativeTransportEnabled());
             } else {
                 LOGGER.info("Deployment failed!");
             }
@@ -74,7 +269,7 @@ public class Main {
         SimpleIdentityManager sim = newSimpleIdentityManager(userIdPath, agentIdPath, endpoints.resolver());
         IoticsApi ioticsApi = newIoticsApi(sim, endpoints.grpc(), Duration.of(tokenDuration, TimeUnit.SECONDS.toChronoUnit()));
 
-        CarDigitalTwinLoader loader = new CarDigitalTwinLoader(eventBus, database, ioticsApi, sim, sharePeriodSec);
+        CarDigitalTwinLoader loader = new CarDigitalTwinLoader(eventBus, database, feedHistory, ioticsApi, sim, sharePeriodSec, shareLogSampleRate, meterRegistry);
 
         File initialFile = new File(carsFile);
 
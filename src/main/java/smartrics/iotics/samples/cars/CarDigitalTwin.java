@@ -55,6 +55,26 @@ public class CarDigitalTwin extends AbstractTwin implements MappablePublisher, M
         return label;
     }
 
+    public String getComment() {
+        return comment;
+    }
+
+    public String getManufacturerName() {
+        return manufacturerName;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public String getColour() {
+        return colour;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
     @Override
     public Mapper getMapper() {
         return this;
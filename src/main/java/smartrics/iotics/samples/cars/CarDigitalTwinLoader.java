@@ -6,6 +6,9 @@ import com.google.gson.stream.JsonReader;
 import com.google.protobuf.ByteString;
 import com.iotics.api.*;
 import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.slf4j.Logger;
@@ -14,6 +17,7 @@ import smartrics.iotics.host.Builders;
 import smartrics.iotics.host.IoticsApi;
 import smartrics.iotics.identity.SimpleIdentityManager;
 import smartrics.iotics.samples.http.Database;
+import smartrics.iotics.samples.http.FeedHistory;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -23,12 +27,14 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class CarDigitalTwinLoader {
     private static final Logger LOGGER = LoggerFactory.getLogger(CarDigitalTwinLoader.class);
+    private static final Logger SHARE_LOGGER = LoggerFactory.getLogger("share");
 
     private final Gson gson;
     private final EventBus eventBus;
@@ -36,19 +42,36 @@ public class CarDigitalTwinLoader {
 
     private final AtomicInteger counter = new AtomicInteger(0);
     private final Database database;
+    private final FeedHistory history;
     private final IoticsApi api;
     private final SimpleIdentityManager sim;
     private final RandomScheduler<Void> sharingScheduler;
-
-    public CarDigitalTwinLoader(EventBus eventBus, Database database, IoticsApi api, SimpleIdentityManager sim, int sharePeriodSec) {
+    private final double shareLogSampleRate;
+    private final Counter upsertSuccess;
+    private final Counter upsertRetry;
+    private final Counter shareSuccess;
+    private final Counter shareFailure;
+
+    public CarDigitalTwinLoader(EventBus eventBus, Database database, FeedHistory history, IoticsApi api, SimpleIdentityManager sim,
+                                int sharePeriodSec, double shareLogSampleRate, MeterRegistry meterRegistry) {
+        this.shareLogSampleRate = shareLogSampleRate;
         this.loaderExecutor = Executors.newCachedThreadPool();
-        this.sharingScheduler = new RandomScheduler<>(sharePeriodSec, sharePeriodSec / 2, 8);
+        Timer shareLateness = Timer.builder("car.share.lateness")
+                .description("Delay between the planned and the actual start of a share tick")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.sharingScheduler = new RandomScheduler<>(sharePeriodSec, sharePeriodSec / 2, 8, shareLateness::record);
+        this.upsertSuccess = Counter.builder("car.upsert").tag("outcome", "success").register(meterRegistry);
+        this.upsertRetry = Counter.builder("car.upsert").tag("outcome", "retry").register(meterRegistry);
+        this.shareSuccess = Counter.builder("car.share").tag("outcome", "success").register(meterRegistry);
+        this.shareFailure = Counter.builder("car.share").tag("outcome", "failure").register(meterRegistry);
         this.gson = new GsonBuilder()
                 .registerTypeAdapter(CarDigitalTwin.class, new CarDigitalTwinDeserializer(api, sim))
                 .registerTypeAdapter(GeoLocation.class, new GeoLocationDeserializer()).create();
         this.eventBus = eventBus;
         this.eventBus.register(this);
         this.database = database;
+        this.history = history;
         this.api = api;
         this.sim = sim;
     }
@@ -88,19 +111,33 @@ public class CarDigitalTwinLoader {
         Consumer<Void> onSuccess = unused -> LOGGER.debug("Successfully scheduled sharing [did={}]", car.getMyIdentity().did());
         Consumer<Throwable> onError = throwable -> LOGGER.warn("Exception sharing [did={}]", car.getMyIdentity().did(), throwable);
 
+        // local copy of the metadata, so it can be queried (and text searched) alongside the feeds
+        database.set(Sem.twinGraph(car.getMyIdentity().did()), Sem.createTwinModel(car.getMyIdentity().did(), car));
+
         retrieveValueIDs(car.getMyIdentity().did(), bindings -> sharingScheduler.start(() -> {
             car.updateState();
 
             OperationalStatus opStatus = car.getOpStatus();
             List<Binding> status = Binding.filter(bindings, "status");
-            database.set(Sem.createStatusModel(car.getMyIdentity().did(), status, opStatus));
+            database.set(Sem.feedGraph(status), Sem.createStatusModel(car.getMyIdentity().did(), status, opStatus));
 
             LocationData locationData = car.getLocationData();
+            // before the commit, so a result cached at the new epoch already includes the sample
+            history.record(car.getMyIdentity().did(), System.currentTimeMillis(), locationData.lat(), locationData.lon(), locationData.speed());
             List<Binding> loc = Binding.filter(bindings, "locationData");
-            database.set(Sem.createLocationDataModel(car.getMyIdentity().did(), loc, locationData));
+            database.set(Sem.feedGraph(loc), Sem.createLocationDataModel(car.getMyIdentity().did(), loc, locationData));
 
             CompletableFuture<Void> future = car.share();
-            future.thenAccept(unused -> LOGGER.info("Shared Car data [did={}][{}][{}]", car.getMyIdentity().did(), car.getOpStatus(), car.getLocationData()));
+            future.whenComplete((unused, throwable) -> {
+                if (throwable == null) {
+                    shareSuccess.increment();
+                    if (SHARE_LOGGER.isInfoEnabled() && ThreadLocalRandom.current().nextDouble() < shareLogSampleRate) {
+                        SHARE_LOGGER.info("Shared Car data [did={}][{}][{}]", car.getMyIdentity().did(), car.getOpStatus(), car.getLocationData());
+                    }
+                } else {
+                    shareFailure.increment();
+                }
+            });
             return null;
         }, onSuccess, onError));
     }
@@ -112,12 +149,14 @@ public class CarDigitalTwinLoader {
         result.addListener(() -> {
             try {
                 UpsertTwinResponse done = result.get();
+                upsertSuccess.increment();
                 LOGGER.info("Processed car {}: {}, with did: {}", counter.incrementAndGet(), car.getLabel(), done.getPayload().getTwinId().getId());
                 eventBus.post(new CarShareEvent(event.car()));
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             } catch (ExecutionException e) {
                 // retry
+                upsertRetry.increment();
                 LOGGER.debug("Exception creating car", result.exceptionNow());
                 eventBus.post(new CarCreateEvent(car));
             }
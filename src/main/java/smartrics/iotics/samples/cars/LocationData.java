@@ -12,6 +12,8 @@ public class LocationData {
     private final double speed;
     @PayloadValue(label = "direction", dataType = XsdDatatype.double_)
     private final double direction;
+    private final double lat;
+    private final double lon;
 
     @StringLiteralProperty(iri = UriConstants.RDFSProperty.Label)
     private String label = "LocationData";
@@ -20,6 +22,8 @@ public class LocationData {
 
     public LocationData(double lat, double lon, double speed, double direction) {
         this.wktLiteral = "POINT("+ lon + " " + lat + ")";
+        this.lat = lat;
+        this.lon = lon;
         this.direction = direction;
         this.speed = speed;
     }
@@ -28,6 +32,14 @@ public class LocationData {
         return wktLiteral;
     }
 
+    public double lat() {
+        return lat;
+    }
+
+    public double lon() {
+        return lon;
+    }
+
     public double speed() {
         return speed;
     }
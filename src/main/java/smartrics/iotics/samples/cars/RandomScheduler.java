@@ -1,5 +1,6 @@
 package smartrics.iotics.samples.cars;
 
+import java.time.Duration;
 import java.util.Random;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
@@ -12,11 +13,21 @@ public class RandomScheduler<T> {
 
     private final int period;
     private final int variance;
+    private final Consumer<Duration> lateness;
     private volatile boolean running = true;
 
     public RandomScheduler(int period, int variance, int tasksThreadPoolSize) {
+        this(period, variance, tasksThreadPoolSize, d -> {
+        });
+    }
+
+    /**
+     * @param lateness notified, for every run, of how long after its planned time the task actually started
+     */
+    public RandomScheduler(int period, int variance, int tasksThreadPoolSize, Consumer<Duration> lateness) {
         this.period = period;
         this.variance = variance;
+        this.lateness = lateness;
         this.scheduler = Executors.newScheduledThreadPool(1);
         this.taskExecutor = Executors.newFixedThreadPool(tasksThreadPoolSize);
     }
@@ -36,11 +47,13 @@ public class RandomScheduler<T> {
         }
 
         int randomDelay = period + random.nextInt(2 * variance + 1) - variance;
-        scheduler.schedule(() -> runTask(task, onSuccess, onError), randomDelay, TimeUnit.SECONDS);
+        long due = System.nanoTime() + TimeUnit.SECONDS.toNanos(randomDelay);
+        scheduler.schedule(() -> runTask(task, onSuccess, onError, due), randomDelay, TimeUnit.SECONDS);
     }
 
-    private void runTask(Callable<T> task, Consumer<T> onSuccess, Consumer<Throwable> onError) {
+    private void runTask(Callable<T> task, Consumer<T> onSuccess, Consumer<Throwable> onError, long due) {
         taskExecutor.submit(() -> {
+            lateness.accept(Duration.ofNanos(Math.max(0, System.nanoTime() - due)));
             try {
                 T result = task.call();
 
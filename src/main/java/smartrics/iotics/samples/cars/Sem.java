@@ -6,6 +6,7 @@ import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.model.impl.LinkedHashModel;
 import org.eclipse.rdf4j.model.util.Values;
 import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.model.vocabulary.RDFS;
 import org.eclipse.rdf4j.model.vocabulary.XSD;
 
 import java.util.List;
@@ -13,6 +14,8 @@ import java.util.List;
 public class Sem {
     private static final String IOTICS_NAMESPACE = "http://data.iotics.com/iotics#";
     private static final String GEO_NAMESPACE = "http://www.opengis.net/ont/geosparql#";
+    private static final String CAR_NAMESPACE = "https://ontologies.metaphacts.com/iotics-car-digital-twin/";
+    private static final String SCHEMA_NAMESPACE = "http://schema.org/";
 
     private static final IRI HAS_GEOMETRY = Values.iri(GEO_NAMESPACE, "hasGeometry");
     private static final IRI POINT_NAME = Values.iri(IOTICS_NAMESPACE, "pointName");
@@ -26,6 +29,48 @@ public class Sem {
     private static final IRI HAS_VALUE = Values.iri(IOTICS_NAMESPACE, "hasValue");
     private static final IRI HAS_SPEED = Values.iri(IOTICS_NAMESPACE, "hasSpeed");
     private static final IRI HAS_DIRECTION = Values.iri(IOTICS_NAMESPACE, "hasDirection");
+    private static final IRI CAR_DIGITAL_TWIN = Values.iri(CAR_NAMESPACE, "CarDigitalTwin");
+    public static final IRI MANUFACTURER_NAME = Values.iri(CAR_NAMESPACE, "manufacturerName");
+    public static final IRI MODEL = Values.iri(CAR_NAMESPACE, "model");
+    public static final IRI COLOUR = Values.iri(SCHEMA_NAMESPACE, "color");
+    private static final IRI IDENTIFIER = Values.iri(SCHEMA_NAMESPACE, "identifier");
+
+    /**
+     * Named graph holding the values of the feed the bindings belong to.
+     */
+    public static IRI feedGraph(List<Binding> feedBindings) {
+        if (feedBindings.isEmpty()) {
+            throw new IllegalStateException("unable to find binding");
+        }
+        return Values.iri(feedBindings.getFirst().pointID());
+    }
+
+    /**
+     * Named graph holding the twin's own metadata.
+     */
+    public static IRI twinGraph(String did) {
+        return Values.iri(did);
+    }
+
+    public static Model createTwinModel(String did, CarDigitalTwin car) {
+        ValueFactory vf = Values.getValueFactory();
+        Model model = new LinkedHashModel();
+        IRI twin = vf.createIRI(did);
+        model.add(twin, RDF.TYPE, CAR_DIGITAL_TWIN);
+        addLiteral(model, twin, RDFS.LABEL, car.getLabel());
+        addLiteral(model, twin, RDFS.COMMENT, car.getComment());
+        addLiteral(model, twin, MANUFACTURER_NAME, car.getManufacturerName());
+        addLiteral(model, twin, MODEL, car.getModel());
+        addLiteral(model, twin, COLOUR, car.getColour());
+        addLiteral(model, twin, IDENTIFIER, car.getIdentifier());
+        return model;
+    }
+
+    private static void addLiteral(Model model, IRI subject, IRI predicate, String value) {
+        if (value != null) {
+            model.add(subject, predicate, Values.literal(value));
+        }
+    }
 
     public static Model createStatusModel(String did, List<Binding> status, OperationalStatus opStatus) {
         if(status.isEmpty()) {
@@ -0,0 +1,70 @@
+package smartrics.iotics.samples.http;
+
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One line per request, written to the {@code access} logger once the response has ended.
+ * <p>
+ * Only the allow-listed request headers are logged. Successful requests are sampled at
+ * {@code sampleRate}; 4xx and 5xx responses are always logged.
+ */
+public class AccessLogHandler implements Handler<RoutingContext> {
+    private static final Logger ACCESS = LoggerFactory.getLogger("access");
+    private static final ThreadLocal<StringBuilder> LINE = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private final String[] headers;
+    private final double sampleRate;
+
+    public AccessLogHandler(List<String> headers, double sampleRate) {
+        this.headers = headers.stream().map(String::trim).filter(h -> !h.isEmpty()).toArray(String[]::new);
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public void handle(RoutingContext ctx) {
+        if (ACCESS.isInfoEnabled()) {
+            long start = System.nanoTime();
+            ctx.addBodyEndHandler(v -> log(ctx, System.nanoTime() - start));
+        }
+        ctx.next();
+    }
+
+    private void log(RoutingContext ctx, long elapsedNanos) {
+        HttpServerResponse response = ctx.response();
+        int status = response.getStatusCode();
+        if (status < 400 && !sampled()) {
+            return;
+        }
+        HttpServerRequest request = ctx.request();
+        SocketAddress remote = request.remoteAddress();
+        StringBuilder line = LINE.get();
+        line.setLength(0);
+        line.append("[method=").append(request.method().name())
+                .append("][uri=").append(request.uri())
+                .append("][status=").append(status)
+                .append("][bytes=").append(response.bytesWritten())
+                .append("][micros=").append(elapsedNanos / 1000)
+                .append("][from=").append(remote == null ? "-" : remote.hostAddress());
+        for (String header : headers) {
+            String value = request.getHeader(header);
+            if (value != null) {
+                line.append("][").append(header).append('=').append(value);
+            }
+        }
+        line.append(']');
+        ACCESS.info(line.toString());
+    }
+
+    private boolean sampled() {
+        return sampleRate >= 1.0 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+}
@@ -0,0 +1,179 @@
+package smartrics.iotics.samples.http;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.net.SocketAddress;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a query may start, before it is handed to the {@link QueryExecutor}.
+ * <p>
+ * Each client, identified by the {@code clientHeader} value (an API key) or else by its remote address, gets a
+ * token bucket of {@code burst} requests refilled at {@code ratePerSecond}. On top of that at most
+ * {@code maxConcurrent} queries run or wait at once, the last {@code prioritySlots} of which only priority
+ * queries (ASK) may take, so cheap probes get through while the rest is saturated. Requests that are turned
+ * away get a reason and how long to wait. Buckets and the concurrency count are updated with CAS only.
+ * A rate or a maximum of 0 switches that check off.
+ */
+public class AdmissionController implements MeterBinder {
+    // the prologue (any PN_PREFIX, comments included) then the ASK keyword, matched on the raw query text;
+    // possessive, so a comment is never cut short to find an ASK inside it
+    private static final String SPACE = "(?:\\s|#[^\\r\\n]*+)*+";
+    private static final Pattern ASK = Pattern.compile(
+            SPACE + "(?:(?:PREFIX\\s*[^\\s:<>#]*:\\s*<[^>]*>|BASE\\s*<[^>]*>)" + SPACE + ")*ASK\\b", Pattern.CASE_INSENSITIVE);
+    private static final long SWEEP_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String clientHeader;
+    private final double ratePerSecond;
+    private final int burst;
+    private final long intervalNanos;
+    private final int maxConcurrent;
+    private final int prioritySlots;
+    private final int maxClients;
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder admittedPriority = new LongAdder();
+    private final LongAdder rejectedRate = new LongAdder();
+    private final LongAdder rejectedConcurrency = new LongAdder();
+
+    /**
+     * @param maxClients buckets kept before idle ones are dropped; an idle bucket is full, so dropping it is free
+     */
+    public AdmissionController(String clientHeader, double ratePerSecond, int burst, int maxConcurrent, int prioritySlots, int maxClients) {
+        this.clientHeader = clientHeader;
+        this.ratePerSecond = Math.max(0, ratePerSecond);
+        this.burst = Math.max(1, burst);
+        this.intervalNanos = ratePerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond) : 0;
+        this.maxConcurrent = Math.max(0, maxConcurrent);
+        this.prioritySlots = Math.min(Math.max(0, prioritySlots), this.maxConcurrent);
+        this.maxClients = maxClients;
+    }
+
+    public String client(HttpServerRequest request) {
+        String key = clientHeader == null ? null : request.getHeader(clientHeader);
+        if (key != null && !key.isBlank()) {
+            return "key:" + key;
+        }
+        SocketAddress address = request.remoteAddress();
+        return address == null ? "unknown" : address.host();
+    }
+
+    /**
+     * Cheap enough for the event loop: only the prologue is scanned, and nothing is normalised or parsed.
+     */
+    public static boolean isPriority(String query) {
+        return query != null && ASK.matcher(query).lookingAt();
+    }
+
+    /**
+     * Admitted queries hold a slot until {@link #release()}.
+     */
+    public Decision admit(String client, boolean priority) {
+        if (!acquireSlot(priority)) {
+            rejectedConcurrency.increment();
+            return new Decision(false, "too many queries in progress", 1);
+        }
+        long waitNanos = takeToken(client);
+        if (waitNanos > 0) {
+            release();
+            rejectedRate.increment();
+            return new Decision(false, "request rate limit exceeded for client", Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1)));
+        }
+        if (priority) {
+            admittedPriority.increment();
+        } else {
+            admitted.increment();
+        }
+        return Decision.ADMITTED;
+    }
+
+    public void release() {
+        if (maxConcurrent > 0) {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(ratePerSecond, burst, maxConcurrent, prioritySlots, inFlight.get(), buckets.size(),
+                admitted.sum(), admittedPriority.sum(), rejectedRate.sum(), rejectedConcurrency.sum());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("sparql.admission.in.flight", inFlight, AtomicInteger::get).register(registry);
+        Gauge.builder("sparql.admission.clients", buckets, Map::size).register(registry);
+        FunctionCounter.builder("sparql.admission.admitted", admitted, LongAdder::sum).tag("lane", "normal").register(registry);
+        FunctionCounter.builder("sparql.admission.admitted", admittedPriority, LongAdder::sum).tag("lane", "priority").register(registry);
+        FunctionCounter.builder("sparql.admission.rejected", rejectedRate, LongAdder::sum).tag("reason", "rate").register(registry);
+        FunctionCounter.builder("sparql.admission.rejected", rejectedConcurrency, LongAdder::sum).tag("reason", "concurrency").register(registry);
+    }
+
+    private boolean acquireSlot(boolean priority) {
+        if (maxConcurrent == 0) {
+            return true;
+        }
+        int limit = priority ? maxConcurrent : maxConcurrent - prioritySlots;
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Generic cell rate algorithm: the bucket is the time at which it will be full again, so taking a token is
+     * a single CAS.
+     *
+     * @return 0 if a token was taken, otherwise how long until one is available
+     */
+    private long takeToken(String client) {
+        if (intervalNanos == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        sweep(now);
+        AtomicLong fullAt = buckets.computeIfAbsent(client, k -> new AtomicLong(now));
+        long capacity = burst * intervalNanos;
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + intervalNanos;
+            if (next - now > capacity) {
+                return next - now - capacity;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (buckets.size() > maxClients && now - last > SWEEP_PERIOD_NANOS && lastSweep.compareAndSet(last, now)) {
+            buckets.values().removeIf(fullAt -> fullAt.get() - now <= 0);
+        }
+    }
+
+    public record Decision(boolean admitted, String reason, long retryAfterSeconds) {
+        static final Decision ADMITTED = new Decision(true, null, 0);
+    }
+
+    public record Stats(double ratePerSecond, int burst, int maxConcurrent, int prioritySlots, int inFlight, int clients,
+                        long admitted, long admittedPriority, long rejectedRate, long rejectedConcurrency) {
+    }
+}
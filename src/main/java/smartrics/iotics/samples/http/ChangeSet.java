@@ -0,0 +1,52 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.sail.SailConnectionListener;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The net statements added and removed by one committed transaction, published by the
+ * {@link Database} once the transaction is visible to readers.
+ */
+public record ChangeSet(long epoch, List<Statement> added, List<Statement> removed, Set<IRI> predicates) {
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * Listens to a sail connection for the length of a transaction. A statement removed and added
+     * back (as REPLACE does for unchanged statements) cancels out.
+     */
+    static final class Collector implements SailConnectionListener {
+        private final Set<Statement> added = new LinkedHashSet<>();
+        private final Set<Statement> removed = new LinkedHashSet<>();
+
+        @Override
+        public void statementAdded(Statement st) {
+            if (!removed.remove(st)) {
+                added.add(st);
+            }
+        }
+
+        @Override
+        public void statementRemoved(Statement st) {
+            if (!added.remove(st)) {
+                removed.add(st);
+            }
+        }
+
+        ChangeSet toChangeSet(long epoch) {
+            Set<IRI> predicates = new HashSet<>();
+            added.forEach(st -> predicates.add(st.getPredicate()));
+            removed.forEach(st -> predicates.add(st.getPredicate()));
+            return new ChangeSet(epoch, new ArrayList<>(added), new ArrayList<>(removed), predicates);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.common.lang.FileFormat;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultWriterFactory;
+import org.eclipse.rdf4j.query.resultio.binary.BinaryQueryResultWriterFactory;
+import org.eclipse.rdf4j.query.resultio.sparqljson.SPARQLResultsJSONWriterFactory;
+import org.eclipse.rdf4j.query.resultio.sparqlxml.SPARQLResultsXMLWriterFactory;
+import org.eclipse.rdf4j.query.resultio.text.csv.SPARQLResultsCSVWriterFactory;
+import org.eclipse.rdf4j.query.resultio.text.tsv.SPARQLResultsTSVWriterFactory;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFWriterFactory;
+import org.eclipse.rdf4j.rio.RDFWriterRegistry;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves an Accept header to the best tuple result format and the best RDF format, so the
+ * response can be chosen once the query type is known.
+ * <p>
+ * Each format takes the q-value of the most specific range matching any of its MIME types
+ * (exact, then {@code type/*}, then {@code *}{@code /*}); q=0 excludes it. Ties go to the more specific
+ * match, then to the range listed first, then to a format's own MIME type over an alias, then to the server's
+ * order below. The response is labelled with the MIME type that matched. A missing header is {@code *}{@code /*}.
+ * Resolved headers are cached, so steady traffic never re-parses them.
+ */
+public final class ContentNegotiator {
+    private static final int MAX_CACHED_HEADERS = 1024;
+
+    // server preference, best first
+    private static final Map<TupleQueryResultFormat, TupleQueryResultWriterFactory> TUPLE_WRITERS = new LinkedHashMap<>();
+    private static final Map<RDFFormat, RDFWriterFactory> RDF_WRITERS = new LinkedHashMap<>();
+
+    private static final Map<String, Formats> CACHE = new ConcurrentHashMap<>();
+    private static final Formats ANY;
+
+    static {
+        TUPLE_WRITERS.put(TupleQueryResultFormat.JSON, new SPARQLResultsJSONWriterFactory());
+        TUPLE_WRITERS.put(TupleQueryResultFormat.SPARQL, new SPARQLResultsXMLWriterFactory());
+        TUPLE_WRITERS.put(TupleQueryResultFormat.CSV, new SPARQLResultsCSVWriterFactory());
+        TUPLE_WRITERS.put(TupleQueryResultFormat.TSV, new SPARQLResultsTSVWriterFactory());
+        // last: a wildcard never selects it ahead of the text formats
+        TUPLE_WRITERS.put(TupleQueryResultFormat.BINARY, new BinaryQueryResultWriterFactory());
+
+        for (RDFFormat format : List.of(RDFFormat.TURTLE, RDFFormat.NTRIPLES, RDFFormat.NQUADS, RDFFormat.JSONLD,
+                RDFFormat.RDFXML, RDFFormat.RDFJSON, RDFFormat.BINARY)) {
+            RDFWriterRegistry.getInstance().get(format).ifPresent(factory -> RDF_WRITERS.put(format, factory));
+        }
+        ANY = resolve("*/*");
+    }
+
+    private ContentNegotiator() {
+    }
+
+    public static Formats negotiate(String acceptHeader) {
+        if (acceptHeader == null || acceptHeader.isBlank()) {
+            return ANY;
+        }
+        Formats formats = CACHE.get(acceptHeader);
+        if (formats == null) {
+            formats = resolve(acceptHeader);
+            // arbitrary client headers must not grow the cache without bound
+            if (CACHE.size() < MAX_CACHED_HEADERS) {
+                CACHE.put(acceptHeader, formats);
+            }
+        }
+        return formats;
+    }
+
+    public static TupleQueryResultWriterFactory tupleWriterFactory(TupleQueryResultFormat format) {
+        return TUPLE_WRITERS.get(format);
+    }
+
+    public static RDFWriterFactory rdfWriterFactory(RDFFormat format) {
+        return RDF_WRITERS.get(format);
+    }
+
+    private static Formats resolve(String acceptHeader) {
+        List<MediaType> ranges = Arrays.stream(acceptHeader.split(","))
+                .map(String::trim)
+                .filter(r -> !r.isEmpty())
+                .map(MediaType::new)
+                .toList();
+        Match tuple = best(TUPLE_WRITERS.keySet(), ranges);
+        Match rdf = best(RDF_WRITERS.keySet(), ranges);
+        return new Formats(
+                tuple == null ? null : (TupleQueryResultFormat) tuple.format(), tuple == null ? null : tuple.mime(),
+                rdf == null ? null : (RDFFormat) rdf.format(), rdf == null ? null : rdf.mime());
+    }
+
+    private static Match best(Iterable<? extends FileFormat> candidates, List<MediaType> ranges) {
+        Match best = null;
+        for (FileFormat format : candidates) {
+            Match match = match(format, ranges);
+            if (match != null && (best == null || match.betterThan(best))) {
+                best = match;
+            }
+        }
+        return best;
+    }
+
+    private static Match match(FileFormat format, List<MediaType> ranges) {
+        Match best = null;
+        for (String mime : ContentTypesMap.aliasesOf(format)) {
+            // the most specific range decides the q-value of a MIME type, even if a broader one has a higher q
+            Match forMime = null;
+            for (int i = 0; i < ranges.size(); i++) {
+                MediaType range = ranges.get(i);
+                int specificity = range.specificity(mime);
+                if (specificity > 0 && (forMime == null || specificity > forMime.specificity())) {
+                    forMime = new Match(format, mime, range.getQuality(), specificity, i);
+                }
+            }
+            if (forMime != null && forMime.quality() > 0 && (best == null || forMime.betterThan(best))) {
+                best = forMime;
+            }
+        }
+        return best;
+    }
+
+    private record Match(FileFormat format, String mime, double quality, int specificity, int position) {
+        boolean betterThan(Match other) {
+            if (quality != other.quality) {
+                return quality > other.quality;
+            }
+            if (specificity != other.specificity) {
+                return specificity > other.specificity;
+            }
+            if (position != other.position) {
+                return position < other.position;
+            }
+            return canonical() && !other.canonical();
+        }
+
+        private boolean canonical() {
+            return mime.equals(format.getDefaultMIMEType());
+        }
+    }
+
+    /**
+     * The formats to answer with, and the MIME types to label them with: {@code tuple} for SELECT,
+     * {@code rdf} for CONSTRUCT/DESCRIBE. Either is null when the client accepts none of them.
+     */
+    public record Formats(TupleQueryResultFormat tuple, String tupleMime, RDFFormat rdf, String rdfMime) {
+        public boolean acceptable() {
+            return tuple != null || rdf != null;
+        }
+
+        /**
+         * @return identifies the pair, e.g. to key cached responses
+         */
+        public String key() {
+            return tupleMime + "|" + rdfMime;
+        }
+    }
+}
@@ -1,25 +1,23 @@
 package smartrics.iotics.samples.http;
 
-import com.iotics.api.SparqlResultType;
 import org.eclipse.rdf4j.common.lang.FileFormat;
 import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
 import org.eclipse.rdf4j.rio.RDFFormat;
 
-import java.io.File;
-import java.nio.charset.Charset;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
-
-import static com.iotics.api.SparqlResultType.*;
 
+/**
+ * The MIME types the endpoint answers to and the format each maps to. Fixed at class load,
+ * so lookups are plain map reads.
+ */
 public class ContentTypesMap {
 
-    private static final Map<String, FileFormat> resultFormat = new ConcurrentHashMap<>(8);
-
-    public static final FileFormat UNRECOGNISED = new FileFormat("", "", Charset.defaultCharset(), "");
+    private static final Map<String, FileFormat> resultFormat = new LinkedHashMap<>();
+    private static final Map<FileFormat, List<String>> aliases = new LinkedHashMap<>();
 
     static {
         resultFormat.put("application/sparql-results+xml", TupleQueryResultFormat.SPARQL);
@@ -31,6 +29,7 @@ public class ContentTypesMap {
         resultFormat.put("text/csv", TupleQueryResultFormat.CSV);
         resultFormat.put("application/csv", TupleQueryResultFormat.CSV);
         resultFormat.put("text/tab-separated-values", TupleQueryResultFormat.TSV);
+        resultFormat.put("application/x-binary-rdf-results-table", TupleQueryResultFormat.BINARY);
 
         resultFormat.put("application/rdf+xml", RDFFormat.RDFXML);
         resultFormat.put("text/turtle", RDFFormat.TURTLE);
@@ -41,24 +40,15 @@ public class ContentTypesMap {
         resultFormat.put("application/rdf+json", RDFFormat.RDFJSON);
         resultFormat.put("application/x-binary-rdf", RDFFormat.BINARY);
 
+        resultFormat.forEach((mime, format) -> aliases.computeIfAbsent(format, f -> new ArrayList<>()).add(mime));
+        aliases.replaceAll((format, mimes) -> List.copyOf(mimes));
     }
 
-    public static String mimeFor(FileFormat e) {
-        Optional<String> res = resultFormat.entrySet().stream()
-                .filter(entry -> entry.getValue().equals(e)).map(Map.Entry::getKey).findFirst();
-        return res.orElse(null);
-    }
-
-    public static FileFormat get(String v, FileFormat def) {
-        return get(v).orElse(def);
-    }
-
-    public static Optional<FileFormat> get(String v) {
-        if (v == null) {
-            return Optional.empty();
-        }
-        FileFormat ff = resultFormat.getOrDefault(v, UNRECOGNISED);
-        return Optional.of(ff);
+    /**
+     * @return every MIME type mapped to the format, empty if the format is not served
+     */
+    public static List<String> aliasesOf(FileFormat format) {
+        return aliases.getOrDefault(format, Collections.emptyList());
     }
 
 }
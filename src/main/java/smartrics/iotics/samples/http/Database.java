@@ -1,151 +1,762 @@
 package smartrics.iotics.samples.http;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerResponse;
 import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
 import org.eclipse.rdf4j.query.resultio.TupleQueryResultWriterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import io.vertx.ext.web.RoutingContext;
-import org.eclipse.rdf4j.common.lang.FileFormat;
+import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
 import org.eclipse.rdf4j.query.*;
+import org.eclipse.rdf4j.query.explanation.Explanation;
 import org.eclipse.rdf4j.query.resultio.TupleQueryResultWriter;
-import org.eclipse.rdf4j.query.resultio.TupleQueryResultWriterFactory;
-import org.eclipse.rdf4j.query.resultio.sparqljson.SPARQLResultsJSONWriterFactory;
-import org.eclipse.rdf4j.query.resultio.sparqlxml.SPARQLResultsXMLWriterFactory;
-import org.eclipse.rdf4j.query.resultio.text.csv.SPARQLResultsCSVWriterFactory;
-import org.eclipse.rdf4j.query.resultio.text.tsv.SPARQLResultsTSVWriterFactory;
-import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.query.parser.ParsedBooleanQuery;
+import org.eclipse.rdf4j.query.parser.ParsedGraphQuery;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.query.parser.ParsedTupleQuery;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.RepositoryException;
+import org.eclipse.rdf4j.repository.RepositoryResult;
+import org.eclipse.rdf4j.repository.sail.SailBooleanQuery;
+import org.eclipse.rdf4j.repository.sail.SailGraphQuery;
 import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.repository.sail.SailRepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailTupleQuery;
 import org.eclipse.rdf4j.rio.RDFFormat;
-import org.eclipse.rdf4j.rio.Rio;
-import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.eclipse.rdf4j.rio.RDFWriter;
+import org.eclipse.rdf4j.sail.NotifyingSailConnection;
+import org.eclipse.rdf4j.sail.Sail;
 
-import java.io.ByteArrayOutputStream;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
-import static smartrics.iotics.samples.http.ContentTypesMap.UNRECOGNISED;
 
 public class Database {
     private static final Logger LOGGER = LoggerFactory.getLogger(Database.class);
+    private static final int QUEUED_BATCHES = 4;
 
-    private final Repository repository;
+    private final SailRepository repository;
+    private final ParsedQueryCache parsedQueryCache;
+    private final ResultCache resultCache;
+    private final AtomicLong epoch = new AtomicLong();
+    // one commit at a time, so epochs, index updates and change sets follow the order of the transactions
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final GroupCommitWriter<Update> writer;
+    private final WriteMode writeMode;
+    private final LongAdder statementsAdded = new LongAdder();
+    private final LongAdder statementsRemoved = new LongAdder();
+    private final LongAdder statementsUnchanged = new LongAdder();
+    // what a full count would say: counting is a scan on the native store, too slow for every scrape
+    private final AtomicLong statements = new AtomicLong();
 
-    public Database() {
-        repository = new SailRepository(new MemoryStore());
+    private final StoreBackend storeBackend;
+    private final long initMillis;
+    private final long initialSize;
+    private final AtomicLong firstAnswerMillis = new AtomicLong(-1);
+    private final SnapshotManager snapshots;
+    private final MeterRegistry meterRegistry;
+    private final Timer commitTimer;
+    private final DistributionSummary commitBatchSize;
+    private final List<Consumer<ChangeSet>> changeListeners = new CopyOnWriteArrayList<>();
+    private final Map<IRI, MagicPredicate> magicPredicates;
+    private final SlowQueryLog slowQueryLog;
+    private final QueryLimits queryLimits;
+    private final String cacheControl;
+    private final QueryCoalescer coalescer;
+    // tells this process's epochs from those of a previous run, which restart from 0
+    private final String etagNonce = Long.toHexString(new SecureRandom().nextLong());
+
+    private Database(Sail sail, StoreBackend storeBackend, ParsedQueryCache parsedQueryCache, ResultCache resultCache,
+                     long commitWindowMillis, int maxCommitBatchSize, WriteMode writeMode, Path snapshotFile, long snapshotPeriodSeconds,
+                     MeterRegistry meterRegistry, Map<IRI, MagicPredicate> magicPredicates, SlowQueryLog slowQueryLog,
+                     QueryLimits queryLimits, long cacheMaxAgeSeconds, QueryCoalescer coalescer) {
+        this.meterRegistry = meterRegistry;
+        this.coalescer = coalescer;
+        this.cacheControl = cacheMaxAgeSeconds > 0 ? "max-age=" + cacheMaxAgeSeconds : "no-cache";
+        this.slowQueryLog = slowQueryLog;
+        this.queryLimits = queryLimits;
+        this.magicPredicates = magicPredicates;
+        this.parsedQueryCache = parsedQueryCache;
+        this.resultCache = resultCache;
+        this.writeMode = writeMode;
+        this.storeBackend = storeBackend;
+        long start = System.nanoTime();
+        repository = new SailRepository(sail);
         repository.init();
+        snapshots = snapshotFile == null ? null : new SnapshotManager(repository, snapshotFile, snapshotPeriodSeconds);
+        if (snapshots != null) {
+            snapshots.restore();
+            snapshots.start();
+        }
+        try (RepositoryConnection conn = repository.getConnection()) {
+            initialSize = conn.size();
+            statements.set(initialSize);
+            for (MagicPredicate magicPredicate : magicPredicates.values()) {
+                List<Statement> statements = new ArrayList<>();
+                for (IRI source : magicPredicate.sources()) {
+                    try (RepositoryResult<Statement> result = conn.getStatements(null, source, null)) {
+                        result.forEach(statements::add);
+                    }
+                }
+                magicPredicate.apply(new ChangeSet(epoch.get(), statements, List.of(), magicPredicate.sources()));
+                LOGGER.info("Magic predicate indexed [predicate={}][statements={}]", magicPredicate.predicate(), statements.size());
+            }
+        }
+        initMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOGGER.info("Store initialised [backend={}][statements={}][millis={}]", storeBackend, initialSize, initMillis);
+        // a few batches queued behind the one being committed; loaders block beyond that
+        this.writer = commitWindowMillis > 0
+                ? new GroupCommitWriter<>(commitWindowMillis, maxCommitBatchSize, QUEUED_BATCHES * Math.max(1, maxCommitBatchSize), this::commit)
+                : null;
+
+        this.commitTimer = Timer.builder("db.set.commit")
+                .description("Latency of the transactions applying Database.set models")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.commitBatchSize = DistributionSummary.builder("db.set.batch.size")
+                .description("Models applied per transaction")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        Gauge.builder("db.statements", statements, AtomicLong::get)
+                .description("Statements in the store")
+                .register(meterRegistry);
+        Gauge.builder("db.epoch", epoch, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("sparql.parsed.cache", parsedQueryCache, c -> c.stats().hits()).tag("result", "hit").register(meterRegistry);
+        FunctionCounter.builder("sparql.parsed.cache", parsedQueryCache, c -> c.stats().misses()).tag("result", "miss").register(meterRegistry);
+        FunctionCounter.builder("sparql.result.cache", resultCache, c -> c.stats().hits()).tag("result", "hit").register(meterRegistry);
+        FunctionCounter.builder("sparql.result.cache", resultCache, c -> c.stats().staleHits()).tag("result", "stale").register(meterRegistry);
+        FunctionCounter.builder("sparql.result.cache", resultCache, c -> c.stats().misses()).tag("result", "miss").register(meterRegistry);
+        Gauge.builder("sparql.result.cache.bytes", resultCache, c -> c.stats().bytes()).register(meterRegistry);
     }
 
     public void set(Model model) {
-        try (RepositoryConnection conn = repository.getConnection()) {
-            model.subjects().forEach(resource ->
-            {
-                try {
-                    conn.remove(resource, null, null);
-                } catch (Exception e) {
-                    LOGGER.warn("unable to remove model for resource " + resource.stringValue());
+        set(null, model);
+    }
+
+    /**
+     * Sets the state of the subjects in the model. In {@link WriteMode#GRAPH} mode the graph, when given,
+     * is replaced as a whole by the model. With group commit this blocks while the commit queue is full.
+     *
+     * @throws IllegalStateException if the database has been shut down
+     */
+    public void set(Resource graph, Model model) {
+        Update update = new Update(graph, model);
+        if (writer != null) {
+            writer.submit(update);
+        } else {
+            commit(List.of(update));
+        }
+    }
+
+    /**
+     * Drops the named graphs and their content. Only meaningful in {@link WriteMode#GRAPH} mode.
+     */
+    public void drop(Resource... graphs) {
+        for (Resource graph : graphs) {
+            set(graph, new LinkedHashModel());
+        }
+    }
+
+    /**
+     * Commits pending writes and closes the store, so persistent backends are synced to disk.
+     */
+    public void shutdown() {
+        if (writer != null) {
+            writer.shutdown();
+        }
+        if (snapshots != null) {
+            snapshots.shutdown();
+        }
+        repository.shutDown();
+    }
+
+    /**
+     * Blocks until all models passed to {@link #set(Resource, Model)} so far are committed.
+     */
+    public void flush() {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * @return the store version: incremented by every commit of the models passed to {@link #set(Resource, Model)}
+     */
+    public long epoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Registers a listener called, on the committing thread and in epoch order, with the net changes of every commit.
+     * Changes are only captured while at least one listener is registered.
+     */
+    public void addChangeListener(Consumer<ChangeSet> listener) {
+        changeListeners.add(listener);
+    }
+
+    public Optional<MagicPredicate> magicPredicate(IRI predicate) {
+        return Optional.ofNullable(magicPredicates.get(predicate));
+    }
+
+    /**
+     * Evaluates a SELECT query to a list of solutions, within the configured time limit. Reading stops after
+     * {@code maxRows + 1} solutions, so a result over the limit is told apart without being collected whole.
+     *
+     * @param maxRows solutions wanted; 0 for no limit
+     * @throws IllegalArgumentException if the query is not a SELECT
+     */
+    public List<BindingSet> select(String query, int maxRows) {
+        try (SailRepositoryConnection conn = repository.getConnection()) {
+            if (!(prepare(conn, QueryNormaliser.normalise(query)) instanceof TupleQuery tupleQuery)) {
+                throw new IllegalArgumentException("not a SELECT query");
+            }
+            tupleQuery.setMaxExecutionTime(queryLimits.executionSeconds(0));
+            List<BindingSet> solutions = new ArrayList<>();
+            try (TupleQueryResult result = tupleQuery.evaluate()) {
+                while (result.hasNext() && (maxRows <= 0 || solutions.size() <= maxRows)) {
+                    solutions.add(result.next());
+                }
+            }
+            return solutions;
+        }
+    }
+
+    /**
+     * @param timeoutSeconds the client's time limit, capped by the configured one; 0 for the configured one
+     */
+    public void run(String query, RoutingContext context, ContentNegotiator.Formats formats, int timeoutSeconds) {
+        String normalised = QueryNormaliser.normalise(query);
+        // read before evaluating: a result is never tagged newer than the data it may have missed
+        long currentEpoch = epoch.get();
+        String etag = etag(normalised, formats.key(), currentEpoch);
+        if (notModified(context, etag)) {
+            return;
+        }
+        if (resultCache.enabled() && serveCached(normalised, context, formats.key(), currentEpoch, etag)) {
+            return;
+        }
+        validators(context, etag);
+        int executionSeconds = queryLimits.executionSeconds(timeoutSeconds);
+        QueryCoalescer.Flight flight = coalescer.lead(normalised, formats.key(), currentEpoch, executionSeconds, context);
+        if (flight == null) {
+            // joined an identical evaluation in progress, which streams the result to this request too
+            return;
+        }
+        ResultCache.Recorder recorder = resultCache.recorder(normalised, formats.key(), currentEpoch);
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try (SailRepositoryConnection conn = repository.getConnection()) {
+            Query preparedQuery = prepare(conn, normalised);
+            if (preparedQuery != null) {
+                preparedQuery.setMaxExecutionTime(executionSeconds);
+            }
+
+            long rows = switch (preparedQuery) {
+                case TupleQuery tupleQuery -> handleTupleQuery(tupleQuery, flight, formats.tuple(), formats.tupleMime(), recorder);
+                case GraphQuery graphQuery -> handleGraphQuery(graphQuery, flight, formats.rdf(), formats.rdfMime(), recorder);
+                case BooleanQuery booleanQuery -> handleBooleanQuery(booleanQuery, flight);
+                case null, default -> {
+                    flight.fail(400, "Unsupported query type");
+                    yield -1;
                 }
-            });
+            };
+            String type = queryType(preparedQuery);
+            String contentType = context.response().headers().get("Content-Type");
+            long nanos = sample.stop(queryTimer(type, contentType));
+            recordFirstAnswer();
+            if (preparedQuery != null && slowQueryLog.isSlow(nanos)) {
+                slowQueryLog.record(normalised, type, contentType, nanos, rows, plan(preparedQuery));
+            }
+        } catch (IllegalArgumentException e) {
+            // bad magic predicate arguments
+            flight.fail(400, ErrorMessage.toJson(e.getMessage()));
+        } catch (Exception e) {
+            flight.fail(500, e.getMessage());
+        } finally {
+            flight.closeToJoiners();
+        }
+    }
+
+    /**
+     * @return the statements in the store, kept up to date by every commit rather than counted
+     */
+    public long size() {
+        return statements.get();
+    }
+
+    public Stats stats() {
+        return new Stats(storeBackend, initialSize, initMillis, firstAnswerMillis.get(), epoch.get(),
+                parsedQueryCache.stats(), resultCache.stats(), writer == null ? null : writer.stats(), writeMode, statementsAdded.sum(), statementsRemoved.sum(), statementsUnchanged.sum(),
+                snapshots == null ? null : snapshots.stats(), slowQueryLog.stats(), queryLimits.stats(),
+                coalescer.stats());
+    }
+
+    private void commit(List<Update> updates) {
+        try {
+            commitInTransaction(updates);
+        } catch (RepositoryException e) {
+            if (updates.size() == 1) {
+                LOGGER.warn("unable to set model {}", updates.getFirst().model(), e);
+                return;
+            }
+            // don't let one bad model take the whole batch down
+            LOGGER.warn("unable to commit batch of {} models, retrying one at a time", updates.size(), e);
+            updates.forEach(update -> commit(List.of(update)));
+        }
+    }
+
+    private void commitInTransaction(List<Update> updates) {
+        // without a group commit writer set() commits on the caller's thread: loaders would race here
+        commitLock.lock();
+        try {
+            commitInTransactionLocked(updates);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    private void commitInTransactionLocked(List<Update> updates) {
+        long start = System.nanoTime();
+        ChangeSet.Collector collector = changeListeners.isEmpty() && magicPredicates.isEmpty() ? null : new ChangeSet.Collector();
+        try (SailRepositoryConnection conn = repository.getConnection()) {
+            if (collector != null && conn.getSailConnection() instanceof NotifyingSailConnection notifying) {
+                notifying.addConnectionListener(collector);
+            }
+            conn.begin();
+            int removed = 0;
+            int added = 0;
+            int unchanged = 0;
+            for (Update update : updates) {
+                WriteMode.Changes changes = writeMode.apply(conn, update.graph(), update.model());
+                removed += changes.removed();
+                added += changes.added();
+                unchanged += changes.unchanged();
+            }
+            conn.commit();
+            statementsRemoved.add(removed);
+            statementsAdded.add(added);
+            statementsUnchanged.add(unchanged);
+            statements.addAndGet(added - removed);
+            LOGGER.debug("committed {} models", updates.size());
+        }
+        // the epoch is only written under the lock
+        long next = epoch.get() + 1;
+        ChangeSet changes = collector == null ? null : collector.toChangeSet(next);
+        if (changes != null && !changes.isEmpty()) {
+            // before the epoch moves on, so no result is cached under an epoch the indexes don't reflect yet
+            magicPredicates.values().forEach(magicPredicate -> magicPredicate.apply(changes));
+        }
+        epoch.set(next);
+        commitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        commitBatchSize.record(updates.size());
+        if (changes != null) {
+            publish(changes);
+        }
+    }
+
+    private void publish(ChangeSet changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        for (Consumer<ChangeSet> listener : changeListeners) {
             try {
-                conn.add(model);
-                LOGGER.debug("added {}", model);
+                listener.accept(changes);
             } catch (Exception e) {
-                LOGGER.warn("unable to remove model for resource {}", model);
+                LOGGER.warn("change listener failed [epoch={}]", changes.epoch(), e);
             }
         }
     }
 
-    public void run(String query, RoutingContext context, String acceptHeader) {
-        try (RepositoryConnection conn = repository.getConnection()) {
-            Query preparedQuery = conn.prepareQuery(QueryLanguage.SPARQL, query);
+    private Timer queryTimer(String type, String format) {
+        return Timer.builder("sparql.query")
+                .description("Query evaluation and serialisation time")
+                .tag("type", type)
+                .tag("format", format == null ? "*/*" : format)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
 
-            switch (preparedQuery) {
-                case TupleQuery tupleQuery -> handleTupleQuery(tupleQuery, context, acceptHeader);
-                case GraphQuery graphQuery -> handleGraphQuery(graphQuery, context, acceptHeader);
-                case BooleanQuery booleanQuery -> handleBooleanQuery(booleanQuery, context);
-                case null, default -> context.response().setStatusCode(400).end("Unsupported query type");
+    private static String queryType(Query query) {
+        return switch (query) {
+            case TupleQuery q -> "select";
+            case GraphQuery q -> "graph";
+            case BooleanQuery q -> "ask";
+            case null, default -> "unsupported";
+        };
+    }
+
+    private void recordFirstAnswer() {
+        if (firstAnswerMillis.get() < 0) {
+            long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+            if (firstAnswerMillis.compareAndSet(-1, uptime)) {
+                LOGGER.info("First query answered {}ms after process start [backend={}][initialStatements={}]", uptime, storeBackend, initialSize);
             }
-        } catch (Exception e) {
-            context.response().setStatusCode(500).end(e.getMessage());
         }
     }
 
-    private void handleTupleQuery(TupleQuery tupleQuery, RoutingContext context, String acceptHeader) {
+    /**
+     * Answers a conditional GET whose {@code If-None-Match} holds the tag the query would be answered with now
+     * with 304 Not Modified, without evaluating the query.
+     *
+     * @return true if the response has been sent
+     */
+    private boolean notModified(RoutingContext context, String etag) {
+        String ifNoneMatch = context.request().getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch == null || context.request().method() != HttpMethod.GET) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            // weak comparison
+            if (tag.equals("*") || tag.equals(etag) || ("W/" + tag).equals(etag)) {
+                validators(context, etag);
+                context.response().setStatusCode(304).end();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean serveCached(String query, RoutingContext context, String formatsKey, long currentEpoch, String currentEtag) {
+        String staleHeader = context.request().getHeader(ResultCache.MAX_STALE_EPOCHS_HEADER);
+        long staleEpochs = 0;
+        if (staleHeader != null) {
+            try {
+                staleEpochs = Long.parseLong(staleHeader.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.debug("ignoring invalid {} header: {}", ResultCache.MAX_STALE_EPOCHS_HEADER, staleHeader);
+            }
+        }
+        Optional<ResultCache.Entry> cached = resultCache.get(query, formatsKey, currentEpoch, staleEpochs);
+        if (cached.isEmpty()) {
+            return false;
+        }
+        ResultCache.Entry entry = cached.get();
+        // the entry's own epoch: a stale body must not be revalidated as current
+        validators(context, entry.epoch() == currentEpoch ? currentEtag : etag(query, formatsKey, entry.epoch()));
+        context.response()
+                .putHeader("Content-Type", entry.contentType())
+                .putHeader("X-Cache", "HIT")
+                .end(Buffer.buffer(entry.body()));
+        queryTimer("cached", entry.contentType()).record(0, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    /**
+     * Weak, as the same result may be sent with different encodings: (process, epoch, query, formats).
+     */
+    private String etag(String normalisedQuery, String formatsKey, long epoch) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(normalisedQuery.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(formatsKey.getBytes(StandardCharsets.UTF_8));
+            return "W/\"" + etagNonce + "-" + epoch + "-" + HexFormat.of().formatHex(digest.digest(), 0, 12) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void validators(RoutingContext context, String etag) {
         HttpServerResponse response = context.response();
-        response.setChunked(true); // Enable chunked transfer
-        response.putHeader("Content-Type", acceptHeader);
+        response.putHeader(HttpHeaders.ETAG, etag);
+        // the format is negotiated
+        response.putHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        if (context.request().method() == HttpMethod.GET) {
+            response.putHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        }
+    }
+
+    private Query prepare(SailRepositoryConnection conn, String query) {
+        // parsing is skipped for queries already in the cache; the sail still optimises per evaluation
+        ParsedQuery parsed = MagicPredicateRewriter.rewrite(parsedQueryCache.get(query), magicPredicates);
+        return switch (parsed) {
+            case ParsedTupleQuery tupleQuery -> new SailTupleQuery(tupleQuery, conn);
+            case ParsedGraphQuery graphQuery -> new SailGraphQuery(graphQuery, conn) {
+            };
+            case ParsedBooleanQuery booleanQuery -> new SailBooleanQuery(booleanQuery, conn) {
+            };
+            case null, default -> null;
+        };
+    }
+
+    private long handleTupleQuery(TupleQuery tupleQuery, QueryCoalescer.Flight flight, TupleQueryResultFormat format, String mime,
+                                  ResultCache.Recorder recorder) {
+        if (format == null) {
+            flight.fail(400, ErrorMessage.toJson("no accepted format for a tuple query"));
+            return -1;
+        }
 
+        flight.putHeader("Content-Type", mime);
+
+        QueryLimits.Guard guard = guardAgainstDisconnect(flight);
         try (TupleQueryResult result = tupleQuery.evaluate()) {
-            Optional<TupleQueryResultWriterFactory> writerFactoryOpt = getTupleQueryResultWriterFactory(acceptHeader);
+            OutputStream out = recorder.wrap(flight.output());
+            TupleQueryResultWriter tupleWriter = ContentNegotiator.tupleWriterFactory(format).getWriter(out);
+            // solutions are serialised as they are produced and sent in bounded chunks
+            guard.report(result, tupleWriter);
+            return complete(guard, flight, recorder, mime);
+        } catch (QueryInterruptedException e) {
+            failTimeout(flight);
+            return -1;
+        } catch (Exception e) {
+            if (!guard.cancelled()) {
+                failStreaming(flight, e);
+            }
+            return -1;
+        }
+    }
 
-            if (writerFactoryOpt.isEmpty()) {
-                context.fail(500, new RuntimeException("Unsupported MIME type: " + acceptHeader));
+    private QueryLimits.Guard guardAgainstDisconnect(QueryCoalescer.Flight flight) {
+        QueryLimits.Guard guard = queryLimits.guard(flight::bytesWritten);
+        flight.onAbandoned(guard::cancel);
+        return guard;
+    }
+
+    /**
+     * Ends a streamed result. Only complete results are cached.
+     */
+    private static long complete(QueryLimits.Guard guard, QueryCoalescer.Flight flight, ResultCache.Recorder recorder, String mime) {
+        if (guard.cancelled()) {
+            // the connections are gone, there is no one to send the rest to
+            flight.closeToJoiners();
+            return guard.rows();
+        }
+        String truncation = guard.truncation();
+        flight.complete(truncation);
+        if (truncation == null) {
+            recorder.complete(mime);
+        }
+        return guard.rows();
+    }
+
+    /**
+     * Sends the query's plan as JSON; at {@link Explanation.Level#Executed} and above the query is run to
+     * completion to annotate each operator with its result size (and, at {@code Timed}, its time).
+     */
+    public void explain(String query, Explanation.Level level, RoutingContext context, int timeoutSeconds) {
+        try (SailRepositoryConnection conn = repository.getConnection()) {
+            Query preparedQuery = prepare(conn, QueryNormaliser.normalise(query));
+            if (preparedQuery == null) {
+                context.response().setStatusCode(400).end("Unsupported query type");
                 return;
             }
+            preparedQuery.setMaxExecutionTime(queryLimits.executionSeconds(timeoutSeconds));
+            context.response()
+                    .putHeader("content-type", "application/json")
+                    .end(preparedQuery.explain(level).toJson());
+        } catch (IllegalArgumentException e) {
+            context.response().setStatusCode(400).end(ErrorMessage.toJson(e.getMessage()));
+        } catch (Exception e) {
+            context.response().setStatusCode(500).end(e.getMessage());
+        }
+    }
 
-            TupleQueryResultWriterFactory writerFactory = writerFactoryOpt.get();
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            TupleQueryResultWriter tupleWriter = writerFactory.getWriter(byteArrayOutputStream);
-            tupleWriter.startQueryResult(result.getBindingNames());
-            while (result.hasNext()) {
-                BindingSet bindingSet = result.next();
-                tupleWriter.handleSolution(bindingSet);
-            }
-            tupleWriter.endQueryResult();
-            response.write(byteArrayOutputStream.toString(StandardCharsets.UTF_8));
+    public List<SlowQueryLog.Entry> slowQueries() {
+        return slowQueryLog.entries();
+    }
 
-            // End the response
-            response.end();
+    private static String plan(Query query) {
+        try {
+            // re-optimises without evaluating: cheap next to a query that was slow
+            return query.explain(Explanation.Level.Optimized).toString();
         } catch (Exception e) {
-            context.fail(500, e);
+            return "unavailable: " + e.getMessage();
         }
     }
 
-    private void handleGraphQuery(GraphQuery graphQuery, RoutingContext context, String acceptHeader) {
+    private long handleGraphQuery(GraphQuery graphQuery, QueryCoalescer.Flight flight, RDFFormat rdfFormat, String mime,
+                                  ResultCache.Recorder recorder) {
+        if (rdfFormat == null) {
+            flight.fail(400, ErrorMessage.toJson("no accepted format for a graph query"));
+            return -1;
+        }
+
+        flight.putHeader("content-type", mime);
+
+        QueryLimits.Guard guard = guardAgainstDisconnect(flight);
         try (GraphQueryResult result = graphQuery.evaluate()) {
-            Model model = QueryResults.asModel(result);
-            StringWriter out = new StringWriter();
-            FileFormat format = ContentTypesMap.get(acceptHeader, UNRECOGNISED);
-            if (format.equals(UNRECOGNISED)) {
-                context.response().setStatusCode(400).end(ErrorMessage.toJson("unrecognised or invalid accept header"));
-            } else if (format instanceof RDFFormat) {
-                Rio.write(model, out, (RDFFormat) format);
-                context.response()
-                        .putHeader("content-type", format.getDefaultMIMEType())
-                        .end(out.toString());
-            } else{
-                context.response().setStatusCode(400).end(ErrorMessage.toJson("Unsupported format type for graph query: " + acceptHeader));
-            }
+            OutputStream out = recorder.wrap(flight.output());
+            RDFWriter rdfWriter = ContentNegotiator.rdfWriterFactory(rdfFormat).getWriter(out);
+            // statements are handed to the writer as the query produces them, no intermediate Model
+            guard.report(result, rdfWriter);
+            return complete(guard, flight, recorder, mime);
+        } catch (QueryInterruptedException e) {
+            failTimeout(flight);
+            return -1;
         } catch (Exception e) {
-            context.response().setStatusCode(500).end(ErrorMessage.toJson(e.getMessage()));
+            if (!guard.cancelled()) {
+                failStreaming(flight, e);
+            }
+            return -1;
         }
     }
-    private void handleBooleanQuery(BooleanQuery booleanQuery, RoutingContext context) {
+
+    private long handleBooleanQuery(BooleanQuery booleanQuery, QueryCoalescer.Flight flight) {
         try {
             boolean result = booleanQuery.evaluate();
-            context.response()
-                    .putHeader("content-type", "application/sparql-results+json")
-                    .end("{\"head\": {}, \"boolean\": " + result + "}");
+            flight.putHeader("content-type", "application/sparql-results+json");
+            flight.output().write(("{\"head\": {}, \"boolean\": " + result + "}").getBytes(StandardCharsets.UTF_8));
+            flight.complete(null);
+            return 1;
+        } catch (QueryInterruptedException e) {
+            failTimeout(flight);
+            return -1;
         } catch (Exception e) {
-            context.response().setStatusCode(500).end(e.getMessage());
+            flight.fail(500, e.getMessage());
+            return -1;
         }
     }
 
+    private void failTimeout(QueryCoalescer.Flight flight) {
+        queryLimits.timedOut();
+        flight.fail(503, ErrorMessage.toJson("query exceeded its execution time"));
+    }
+
+    private void failStreaming(QueryCoalescer.Flight flight, Exception e) {
+        LOGGER.warn("failure while evaluating or streaming results", e);
+        flight.failStreaming(e);
+    }
+
+    private record Update(Resource graph, Model model) {
+    }
+
+    public record Stats(StoreBackend storeBackend, long initialStatements, long initMillis, long firstAnswerMillis, long epoch, ParsedQueryCache.Stats parsedQueries, ResultCache.Stats results,
+                        GroupCommitWriter.Stats writes, WriteMode writeMode, long statementsAdded,
+                        long statementsRemoved, long statementsUnchanged, SnapshotManager.Stats snapshots,
+                        SlowQueryLog.Stats slowQueries, QueryLimits.Stats limits, QueryCoalescer.Stats coalescing) {
+    }
+
+    public static final class DatabaseBuilder {
+        private ParsedQueryCache parsedQueryCache = new ParsedQueryCache(0, 0, false);
+        private ResultCache resultCache = new ResultCache(0, 0, 0);
+        private long commitWindowMillis;
+        private int maxCommitBatchSize = 1;
+        private WriteMode writeMode = WriteMode.REPLACE;
+        private StoreBackend storeBackend = StoreBackend.MEMORY;
+        private Path dataDir;
+        private long syncDelayMillis;
+        private Path snapshotFile;
+        private long snapshotPeriodSeconds;
+        private MeterRegistry meterRegistry = new CompositeMeterRegistry();
+        private final Map<IRI, MagicPredicate> magicPredicates = new LinkedHashMap<>();
+        private SlowQueryLog slowQueryLog = new SlowQueryLog(0, 0);
+        private QueryLimits queryLimits = new QueryLimits(0, 0, 0);
+        private long cacheMaxAgeSeconds;
+        private QueryCoalescer coalescer = new QueryCoalescer(0);
+
+        private DatabaseBuilder() {
+        }
+
+        public static DatabaseBuilder aDatabase() {
+            return new DatabaseBuilder();
+        }
+
+        public DatabaseBuilder withParsedQueryCache(ParsedQueryCache parsedQueryCache) {
+            this.parsedQueryCache = parsedQueryCache;
+            return this;
+        }
+
+        public DatabaseBuilder withResultCache(ResultCache resultCache) {
+            this.resultCache = resultCache;
+            return this;
+        }
+
+        public DatabaseBuilder withGroupCommit(long commitWindowMillis, int maxCommitBatchSize) {
+            this.commitWindowMillis = commitWindowMillis;
+            this.maxCommitBatchSize = maxCommitBatchSize;
+            return this;
+        }
 
-    private Optional<TupleQueryResultWriterFactory> getTupleQueryResultWriterFactory(String acceptHeader) {
-        Optional<FileFormat> off = ContentTypesMap.get(acceptHeader);
-        if(off.isEmpty()) {
-            return Optional.empty();
+        public DatabaseBuilder withWriteMode(WriteMode writeMode) {
+            this.writeMode = writeMode;
+            return this;
+        }
+
+        public DatabaseBuilder withStore(StoreBackend storeBackend, Path dataDir, long syncDelayMillis) {
+            this.storeBackend = storeBackend;
+            this.dataDir = dataDir;
+            this.syncDelayMillis = syncDelayMillis;
+            return this;
+        }
+
+        public DatabaseBuilder withSnapshots(Path snapshotFile, long snapshotPeriodSeconds) {
+            this.snapshotFile = snapshotFile;
+            this.snapshotPeriodSeconds = snapshotPeriodSeconds;
+            return this;
+        }
+
+        public DatabaseBuilder withMeterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = meterRegistry;
+            return this;
+        }
+
+        public DatabaseBuilder withMagicPredicate(MagicPredicate magicPredicate) {
+            this.magicPredicates.put(magicPredicate.predicate(), magicPredicate);
+            return this;
+        }
+
+        public DatabaseBuilder withSlowQueryLog(SlowQueryLog slowQueryLog) {
+            this.slowQueryLog = slowQueryLog;
+            return this;
+        }
+
+        public DatabaseBuilder withQueryLimits(QueryLimits queryLimits) {
+            this.queryLimits = queryLimits;
+            return this;
+        }
+
+        /**
+         * @param maxAgeSeconds how long clients may reuse a GET response without revalidating; 0 for always revalidate
+         */
+        public DatabaseBuilder withCacheMaxAge(long maxAgeSeconds) {
+            this.cacheMaxAgeSeconds = maxAgeSeconds;
+            return this;
+        }
+
+        public DatabaseBuilder withCoalescer(QueryCoalescer coalescer) {
+            this.coalescer = coalescer;
+            return this;
+        }
+
+        public Database build() {
+            if (storeBackend != StoreBackend.MEMORY && dataDir == null) {
+                throw new IllegalArgumentException("a data directory is required for the " + storeBackend + " backend");
+            }
+            Sail sail = storeBackend.create(dataDir, syncDelayMillis);
+            return new Database(sail, storeBackend, parsedQueryCache, resultCache, commitWindowMillis, maxCommitBatchSize, writeMode,
+                    snapshotFile, snapshotPeriodSeconds, meterRegistry, Map.copyOf(magicPredicates), slowQueryLog,
+                    queryLimits, cacheMaxAgeSeconds, coalescer);
         }
-        FileFormat ff = off.get();
-        if(TupleQueryResultFormat.SPARQL.equals(ff)) return Optional.of(new SPARQLResultsXMLWriterFactory());
-        else if (TupleQueryResultFormat.JSON.equals(ff)) return Optional.of(new SPARQLResultsJSONWriterFactory());
-        else if (TupleQueryResultFormat.CSV.equals(ff)) return Optional.of(new SPARQLResultsCSVWriterFactory());
-        else if (TupleQueryResultFormat.TSV.equals(ff)) return Optional.of(new SPARQLResultsTSVWriterFactory());
-        else return Optional.empty();
     }
 
 }
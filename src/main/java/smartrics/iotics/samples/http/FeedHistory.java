@@ -0,0 +1,246 @@
+package smartrics.iotics.samples.http;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent location samples of every twin, kept for a bounded time window.
+ * <p>
+ * Each twin has a ring of parallel primitive arrays (timestamp, lat, lon, speed), so a sample costs
+ * {@value #BYTES_PER_SAMPLE} bytes and no objects. Rings start small and grow up to {@code maxSamples};
+ * once full the oldest sample is overwritten. Samples are kept in time order whatever order they arrive in.
+ * Samples older than the retention are dropped as new ones arrive and never returned by queries.
+ */
+public class FeedHistory implements MeterBinder {
+    static final int BYTES_PER_SAMPLE = Long.BYTES + 3 * Double.BYTES;
+    private static final Logger LOGGER = LoggerFactory.getLogger(FeedHistory.class);
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long retentionMillis;
+    private final int maxSamples;
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+
+    public FeedHistory(long retentionMillis, int maxSamples) {
+        this.retentionMillis = retentionMillis;
+        this.maxSamples = maxSamples;
+        LOGGER.info("Feed history [retentionMillis={}][maxSamples={}][bytesPerSample={}]", retentionMillis, maxSamples, BYTES_PER_SAMPLE);
+    }
+
+    public void record(String twin, long timestampMillis, double lat, double lon, double speed) {
+        rings.computeIfAbsent(twin, k -> new Ring(Math.min(INITIAL_CAPACITY, maxSamples)))
+                .add(timestampMillis, lat, lon, speed, maxSamples, timestampMillis - retentionMillis);
+    }
+
+    /**
+     * @return the mean speed of the samples taken since {@code fromMillis}, or NaN if there are none
+     */
+    public double averageSpeed(String twin, long fromMillis) {
+        Ring ring = rings.get(twin);
+        return ring == null ? Double.NaN : ring.averageSpeed(Math.max(fromMillis, cutoff()));
+    }
+
+    /**
+     * @return the great-circle distance in km along the samples taken since {@code fromMillis}, or NaN if there
+     * are none
+     */
+    public double distanceKm(String twin, long fromMillis) {
+        Ring ring = rings.get(twin);
+        return ring == null ? Double.NaN : ring.distanceKm(Math.max(fromMillis, cutoff()));
+    }
+
+    /**
+     * @return the positions since {@code fromMillis}, oldest first, as a WKT LINESTRING (a POINT if there is one
+     * sample), or null if there are none
+     */
+    public String path(String twin, long fromMillis) {
+        Ring ring = rings.get(twin);
+        return ring == null ? null : ring.path(Math.max(fromMillis, cutoff()));
+    }
+
+    public Stats stats() {
+        long samples = 0;
+        long allocatedBytes = 0;
+        double samplesPerHour = 0;
+        for (Ring ring : rings.values()) {
+            synchronized (ring) {
+                samples += ring.size;
+                allocatedBytes += (long) ring.timestamps.length * BYTES_PER_SAMPLE;
+                samplesPerHour += ring.samplesPerHour();
+            }
+        }
+        int twins = rings.size();
+        // what a twin costs for each hour of retention at the rate it is actually being sampled
+        long bytesPerTwinHour = twins == 0 ? 0 : Math.round(samplesPerHour / twins * BYTES_PER_SAMPLE);
+        return new Stats(twins, samples, allocatedBytes, bytesPerTwinHour, retentionMillis / 1000, maxSamples);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("feed.history.twins", rings, Map::size).register(registry);
+        Gauge.builder("feed.history.bytes", this, h -> h.stats().allocatedBytes())
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    private long cutoff() {
+        return System.currentTimeMillis() - retentionMillis;
+    }
+
+    private static final class Ring {
+        private long[] timestamps;
+        private double[] lats;
+        private double[] lons;
+        private double[] speeds;
+        // index of the oldest sample
+        private int head;
+        private int size;
+
+        private Ring(int capacity) {
+            allocate(capacity);
+        }
+
+        synchronized void add(long timestamp, double lat, double lon, double speed, int maxSamples, long cutoff) {
+            while (size > 0 && timestamps[head] < cutoff) {
+                head = (head + 1) % timestamps.length;
+                size--;
+            }
+            if (size == timestamps.length) {
+                if (size < maxSamples) {
+                    grow(Math.min(maxSamples, size * 2));
+                } else if (timestamp < timestamps[head]) {
+                    // late and older than everything kept: it would be the one overwritten
+                    return;
+                } else {
+                    head = (head + 1) % timestamps.length;
+                    size--;
+                }
+            }
+            // samples are kept in time order: a late one is moved back into place, after any with the same time
+            int k = size;
+            while (k > 0 && timestamps[(head + k - 1) % timestamps.length] > timestamp) {
+                int from = (head + k - 1) % timestamps.length;
+                int to = (head + k) % timestamps.length;
+                timestamps[to] = timestamps[from];
+                lats[to] = lats[from];
+                lons[to] = lons[from];
+                speeds[to] = speeds[from];
+                k--;
+            }
+            int i = (head + k) % timestamps.length;
+            timestamps[i] = timestamp;
+            lats[i] = lat;
+            lons[i] = lon;
+            speeds[i] = speed;
+            size++;
+        }
+
+        synchronized double averageSpeed(long from) {
+            double sum = 0;
+            int n = 0;
+            for (int k = first(from); k < size; k++) {
+                sum += speeds[(head + k) % timestamps.length];
+                n++;
+            }
+            return n == 0 ? Double.NaN : sum / n;
+        }
+
+        synchronized double distanceKm(long from) {
+            int k = first(from);
+            if (k == size) {
+                return Double.NaN;
+            }
+            double km = 0;
+            for (int prev = -1; k < size; k++) {
+                int i = (head + k) % timestamps.length;
+                if (prev >= 0) {
+                    km += haversineKm(lats[prev], lons[prev], lats[i], lons[i]);
+                }
+                prev = i;
+            }
+            return km;
+        }
+
+        synchronized String path(long from) {
+            int k = first(from);
+            if (k == size) {
+                return null;
+            }
+            StringBuilder wkt = new StringBuilder(size - k == 1 ? "POINT(" : "LINESTRING(");
+            for (int n = 0; k < size; k++, n++) {
+                int i = (head + k) % timestamps.length;
+                if (n > 0) {
+                    wkt.append(", ");
+                }
+                wkt.append(lons[i]).append(' ').append(lats[i]);
+            }
+            return wkt.append(')').toString();
+        }
+
+        double samplesPerHour() {
+            if (size < 2) {
+                return size;
+            }
+            long span = timestamps[(head + size - 1) % timestamps.length] - timestamps[head];
+            return span <= 0 ? size : (size - 1) * 3_600_000.0 / span;
+        }
+
+        // offset from head of the first sample at or after from; samples are in time order
+        private int first(long from) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timestamps[(head + mid) % timestamps.length] < from) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private void grow(int capacity) {
+            long[] oldTimestamps = timestamps;
+            double[] oldLats = lats;
+            double[] oldLons = lons;
+            double[] oldSpeeds = speeds;
+            allocate(capacity);
+            for (int k = 0; k < size; k++) {
+                int i = (head + k) % oldTimestamps.length;
+                timestamps[k] = oldTimestamps[i];
+                lats[k] = oldLats[i];
+                lons[k] = oldLons[i];
+                speeds[k] = oldSpeeds[i];
+            }
+            head = 0;
+        }
+
+        private void allocate(int capacity) {
+            timestamps = new long[capacity];
+            lats = new double[capacity];
+            lons = new double[capacity];
+            speeds = new double[capacity];
+        }
+
+        private static double haversineKm(double lat1, double lon1, double lat2, double lon2) {
+            double dLat = Math.toRadians(lat2 - lat1);
+            double dLon = Math.toRadians(lon2 - lon1);
+            double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                    + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+            return 2 * 6371.0 * Math.asin(Math.sqrt(a));
+        }
+    }
+
+    /**
+     * @param bytesPerTwinHour memory a twin's history costs per hour retained, at the observed sampling rate
+     */
+    public record Stats(int twins, long samples, long allocatedBytes, long bytesPerTwinHour, long retentionSeconds,
+                        int maxSamples) {
+    }
+}
@@ -0,0 +1,97 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.util.Values;
+import org.eclipse.rdf4j.query.algebra.evaluation.TripleSource;
+import org.eclipse.rdf4j.query.algebra.evaluation.ValueExprEvaluationException;
+import org.eclipse.rdf4j.query.algebra.evaluation.function.Function;
+import org.eclipse.rdf4j.query.algebra.evaluation.function.FunctionRegistry;
+
+import java.util.List;
+
+/**
+ * SPARQL functions over {@link FeedHistory}, taking a twin IRI and a window in minutes back from now:
+ * <pre>
+ * PREFIX hist: &lt;http://smartrics.iotics/history#&gt;
+ * SELECT ?car (hist:avgSpeed(?car, 10) AS ?speed) (hist:path(?car, 10) AS ?path)
+ * WHERE { ?value iotics:twinID ?car ; geo:hasGeometry ?geometry }
+ * </pre>
+ * {@code avgSpeed} is an xsd:double in the unit the feed shares, {@code distance} an xsd:double in km along
+ * the recorded positions and {@code path} a geo:wktLiteral. The result is unbound when there are no samples in
+ * the window.
+ * <p>
+ * The window is relative to the time of evaluation, but a cached result is reused until the next commit; with
+ * live feeds that is the next share tick.
+ */
+public final class FeedHistoryFunctions {
+    public static final String NAMESPACE = "http://smartrics.iotics/history#";
+    private static final IRI WKT_LITERAL = Values.iri("http://www.opengis.net/ont/geosparql#", "wktLiteral");
+
+    private FeedHistoryFunctions() {
+    }
+
+    public static void register(FeedHistory history) {
+        for (Function function : List.of(
+                window("avgSpeed", (vf, twin, from) -> {
+                    double avg = history.averageSpeed(twin, from);
+                    return Double.isNaN(avg) ? null : vf.createLiteral(avg);
+                }),
+                window("distance", (vf, twin, from) -> {
+                    double km = history.distanceKm(twin, from);
+                    return Double.isNaN(km) ? null : vf.createLiteral(km);
+                }),
+                window("path", (vf, twin, from) -> {
+                    String wkt = history.path(twin, from);
+                    return wkt == null ? null : vf.createLiteral(wkt, WKT_LITERAL);
+                }))) {
+            FunctionRegistry.getInstance().add(function);
+        }
+    }
+
+    private static Function window(String name, WindowFunction body) {
+        String uri = NAMESPACE + name;
+        return new Function() {
+            @Override
+            public String getURI() {
+                return uri;
+            }
+
+            @Override
+            public Value evaluate(TripleSource tripleSource, Value... args) throws ValueExprEvaluationException {
+                return evaluateWindow(name, body, tripleSource.getValueFactory(), args);
+            }
+
+            // still abstract in the interface; the evaluation strategy only calls the TripleSource variant
+            @Deprecated
+            @Override
+            public Value evaluate(ValueFactory vf, Value... args) throws ValueExprEvaluationException {
+                return evaluateWindow(name, body, vf, args);
+            }
+        };
+    }
+
+    private static Value evaluateWindow(String name, WindowFunction body, ValueFactory vf, Value... args) {
+        if (args.length != 2 || !(args[0] instanceof IRI twin) || !(args[1] instanceof Literal minutes)) {
+            throw new ValueExprEvaluationException(name + " expects (twin IRI, minutes)");
+        }
+        long windowMillis;
+        try {
+            windowMillis = Math.round(minutes.doubleValue() * 60_000);
+        } catch (NumberFormatException e) {
+            throw new ValueExprEvaluationException(name + ": minutes is not a number: " + minutes.getLabel());
+        }
+        Value result = body.apply(vf, twin.stringValue(), System.currentTimeMillis() - windowMillis);
+        if (result == null) {
+            throw new ValueExprEvaluationException("no history in the window");
+        }
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface WindowFunction {
+        Value apply(ValueFactory vf, String twin, long fromMillis);
+    }
+}
@@ -0,0 +1,213 @@
+package smartrics.iotics.samples.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces writes submitted within a short window into a single batch, handed to the committer
+ * on a dedicated thread. The committer is expected to apply the whole batch in one transaction.
+ * <p>
+ * At most {@code maxQueued} writes wait for the committer; submitting more blocks until there is room.
+ * Once shut down, or if the committer thread dies, further submits and flushes are refused.
+ */
+public class GroupCommitWriter<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final Consumer<List<T>> committer;
+    private final LinkedBlockingQueue<Write<T>> queue;
+    // queued by shutdown(): the worker commits what is before it, then stops
+    private final Write<T> stop = new Write<>(null, null);
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder commitNanos = new LongAdder();
+    private final AtomicLong lastBatchSize = new AtomicLong();
+    private final AtomicLong maxBatchSeen = new AtomicLong();
+    private final AtomicLong lastCommitNanos = new AtomicLong();
+    private final AtomicLong maxCommitNanos = new AtomicLong();
+
+    public GroupCommitWriter(long windowMillis, int maxBatchSize, int maxQueued, Consumer<List<T>> committer) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxBatchSize = maxBatchSize;
+        this.queue = new LinkedBlockingQueue<>(Math.max(1, maxQueued));
+        this.committer = committer;
+        this.worker = Thread.ofPlatform().name("db-group-commit").daemon(true).start(this::loop);
+    }
+
+    /**
+     * Blocks while the queue is full.
+     *
+     * @throws IllegalStateException if the writer has stopped
+     */
+    public void submit(T write) {
+        enqueue(new Write<>(write, null));
+    }
+
+    /**
+     * Blocks until everything submitted before this call has been committed.
+     *
+     * @throws IllegalStateException if the writer has stopped, or stops before getting there
+     */
+    public void flush() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        enqueue(new Write<>(null, done));
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("group commit writer stopped before the flush", e.getCause());
+        }
+    }
+
+    /**
+     * Commits everything submitted so far and waits for the writer thread to end.
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            queue.put(stop);
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Stats stats() {
+        long b = batches.sum();
+        long w = writes.sum();
+        return new Stats(b, w, failures.sum(), queue.size(), lastBatchSize.get(), maxBatchSeen.get(),
+                b == 0 ? 0.0 : (double) w / b,
+                toMillis(lastCommitNanos.get()), b == 0 ? 0.0 : toMillis(commitNanos.sum()) / b, toMillis(maxCommitNanos.get()));
+    }
+
+    private void enqueue(Write<T> write) {
+        if (!running) {
+            throw new IllegalStateException("group commit writer is stopped");
+        }
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for room in the commit queue", e);
+        }
+        // stopped meanwhile: the worker may already have drained the queue for the last time
+        if (!running && queue.removeIf(w -> w == write)) {
+            throw new IllegalStateException("group commit writer is stopped");
+        }
+    }
+
+    private void loop() {
+        List<Write<T>> batch = new ArrayList<>();
+        Error failure = null;
+        try {
+            boolean stopping = false;
+            while (!stopping) {
+                Write<T> first = queue.take();
+                stopping = first == stop;
+                if (!stopping) {
+                    batch.add(first);
+                }
+                long deadline = System.nanoTime() + windowNanos;
+                while (!stopping && batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Write<T> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    stopping = next == stop;
+                    if (!stopping) {
+                        batch.add(next);
+                    }
+                }
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Error e) {
+            failure = e;
+            LOGGER.error("group commit writer died", e);
+            throw e;
+        } finally {
+            running = false;
+            // what got in before submitters could see the writer had stopped
+            queue.drainTo(batch);
+            batch.removeIf(w -> w == stop);
+            if (failure == null) {
+                commit(batch);
+            } else {
+                abandon(batch, failure);
+            }
+        }
+    }
+
+    private void commit(List<Write<T>> batch) {
+        List<T> pending = new ArrayList<>(batch.size());
+        for (Write<T> w : batch) {
+            if (w.write() != null) {
+                pending.add(w.write());
+            }
+        }
+        if (!pending.isEmpty()) {
+            long start = System.nanoTime();
+            try {
+                committer.accept(pending);
+            } catch (Exception e) {
+                failures.increment();
+                LOGGER.warn("unable to commit batch of {} writes", pending.size(), e);
+            }
+            long elapsed = System.nanoTime() - start;
+            batches.increment();
+            writes.add(pending.size());
+            commitNanos.add(elapsed);
+            lastBatchSize.set(pending.size());
+            maxBatchSeen.accumulateAndGet(pending.size(), Math::max);
+            lastCommitNanos.set(elapsed);
+            maxCommitNanos.accumulateAndGet(elapsed, Math::max);
+            LOGGER.debug("committed batch [size={}][millis={}]", pending.size(), toMillis(elapsed));
+        }
+        for (Write<T> w : batch) {
+            if (w.flushed() != null) {
+                w.flushed().complete(null);
+            }
+        }
+    }
+
+    private void abandon(List<Write<T>> batch, Error failure) {
+        long dropped = batch.stream().filter(w -> w.write() != null).count();
+        if (dropped > 0) {
+            failures.increment();
+            LOGGER.error("dropped {} writes not committed before the writer died", dropped);
+        }
+        for (Write<T> w : batch) {
+            if (w.flushed() != null) {
+                w.flushed().completeExceptionally(failure);
+            }
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private record Write<T>(T write, CompletableFuture<Void> flushed) {
+    }
+
+    public record Stats(long batches, long writes, long failures, int queued, long lastBatchSize, long maxBatchSize,
+                        double avgBatchSize, double lastCommitMillis, double avgCommitMillis, double maxCommitMillis) {
+    }
+}
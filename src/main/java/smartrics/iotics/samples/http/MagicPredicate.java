@@ -0,0 +1,41 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A predicate answered by an in-process index rather than by the store. In a query
+ * <pre>
+ * ?subject &lt;predicate&gt; "argument" .
+ * ?subject &lt;predicate&gt; (argument1 argument2 ...) .
+ * </pre>
+ * the pattern is replaced, before evaluation, by the subjects the index returns for the constant
+ * argument(s); the rest of the query joins with them as usual.
+ * <p>
+ * The {@link Database} builds the index from the statements of its {@link #sources()} predicates when it
+ * starts and applies every committed change to it before the commit's epoch is published.
+ */
+public interface MagicPredicate {
+
+    IRI predicate();
+
+    /**
+     * @return the stored predicates the index is built from
+     */
+    Set<IRI> sources();
+
+    /**
+     * Applies the statements of {@link #sources()} predicates added and removed by a commit; other
+     * statements in the change set are ignored. Called by one thread at a time, in commit order.
+     */
+    void apply(ChangeSet changes);
+
+    /**
+     * @throws IllegalArgumentException if the arguments are not the ones the predicate expects
+     */
+    Collection<? extends Value> subjects(List<Value> arguments);
+}
@@ -0,0 +1,110 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.algebra.BindingSetAssignment;
+import org.eclipse.rdf4j.query.algebra.EmptySet;
+import org.eclipse.rdf4j.query.algebra.SingletonSet;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.helpers.collectors.StatementPatternCollector;
+import org.eclipse.rdf4j.query.algebra.evaluation.QueryBindingSet;
+import org.eclipse.rdf4j.query.parser.ParsedBooleanQuery;
+import org.eclipse.rdf4j.query.parser.ParsedGraphQuery;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.query.parser.ParsedTupleQuery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces the {@link MagicPredicate} patterns of a parsed query with the subjects their index returns.
+ * The parsed query may be shared through the {@link ParsedQueryCache}, so the algebra is cloned first and
+ * queries without magic predicates are returned as they are.
+ */
+final class MagicPredicateRewriter {
+
+    private MagicPredicateRewriter() {
+    }
+
+    static ParsedQuery rewrite(ParsedQuery parsed, Map<IRI, MagicPredicate> magicPredicates) {
+        if (parsed == null || magicPredicates.isEmpty()
+                || StatementPatternCollector.process(parsed.getTupleExpr()).stream().noneMatch(p -> magic(p, magicPredicates) != null)) {
+            return parsed;
+        }
+        TupleExpr expr = parsed.getTupleExpr().clone();
+        List<StatementPattern> patterns = StatementPatternCollector.process(expr);
+        // the nodes of (a b c) collections: rdf:first and rdf:rest patterns keyed by their anonymous subject
+        Map<String, StatementPattern> firsts = new HashMap<>();
+        Map<String, StatementPattern> rests = new HashMap<>();
+        for (StatementPattern pattern : patterns) {
+            if (pattern.getSubjectVar().isAnonymous() && !pattern.getSubjectVar().hasValue()) {
+                if (RDF.FIRST.equals(pattern.getPredicateVar().getValue())) {
+                    firsts.put(pattern.getSubjectVar().getName(), pattern);
+                } else if (RDF.REST.equals(pattern.getPredicateVar().getValue())) {
+                    rests.put(pattern.getSubjectVar().getName(), pattern);
+                }
+            }
+        }
+        for (StatementPattern pattern : patterns) {
+            MagicPredicate magicPredicate = magic(pattern, magicPredicates);
+            if (magicPredicate != null) {
+                List<Value> arguments = arguments(pattern.getObjectVar(), firsts, rests);
+                pattern.replaceWith(subjects(pattern.getSubjectVar(), magicPredicate.subjects(arguments)));
+            }
+        }
+        return switch (parsed) {
+            case ParsedTupleQuery q -> new ParsedTupleQuery(q.getSourceString(), expr);
+            case ParsedGraphQuery q -> new ParsedGraphQuery(q.getSourceString(), expr, q.getQueryNamespaces());
+            case ParsedBooleanQuery q -> new ParsedBooleanQuery(q.getSourceString(), expr);
+            default -> parsed;
+        };
+    }
+
+    private static MagicPredicate magic(StatementPattern pattern, Map<IRI, MagicPredicate> magicPredicates) {
+        return pattern.getPredicateVar().getValue() instanceof IRI iri ? magicPredicates.get(iri) : null;
+    }
+
+    private static List<Value> arguments(Var object, Map<String, StatementPattern> firsts, Map<String, StatementPattern> rests) {
+        if (object.hasValue()) {
+            return List.of(object.getValue());
+        }
+        List<Value> arguments = new ArrayList<>();
+        Var node = object;
+        while (!node.hasValue()) {
+            StatementPattern first = firsts.get(node.getName());
+            StatementPattern rest = rests.get(node.getName());
+            if (first == null || rest == null || !first.getObjectVar().hasValue()) {
+                throw new IllegalArgumentException("the object of a magic predicate must be a constant or a list of constants");
+            }
+            arguments.add(first.getObjectVar().getValue());
+            first.replaceWith(new SingletonSet());
+            rest.replaceWith(new SingletonSet());
+            node = rest.getObjectVar();
+        }
+        return arguments;
+    }
+
+    private static TupleExpr subjects(Var subject, Collection<? extends Value> values) {
+        if (subject.hasValue()) {
+            return values.contains(subject.getValue()) ? new SingletonSet() : new EmptySet();
+        }
+        List<BindingSet> bindingSets = new ArrayList<>(values.size());
+        for (Value value : values) {
+            QueryBindingSet bindingSet = new QueryBindingSet(1);
+            bindingSet.addBinding(subject.getName(), value);
+            bindingSets.add(bindingSet);
+        }
+        BindingSetAssignment assignment = new BindingSetAssignment();
+        assignment.setBindingNames(Set.of(subject.getName()));
+        assignment.setBindingSets(bindingSets);
+        return assignment;
+    }
+}
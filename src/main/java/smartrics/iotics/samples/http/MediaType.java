@@ -6,14 +6,15 @@ class MediaType {
 
     public MediaType(String mediaRange) {
         String[] parts = mediaRange.split(";");
-        this.type = parts[0].trim();
+        String t = parts[0].trim().toLowerCase();
+        this.type = "*".equals(t) ? "*/*" : t;
         this.quality = 1.0; // Default quality value
 
         for (String part : parts) {
             part = part.trim();
             if (part.startsWith("q=")) {
                 try {
-                    this.quality = Double.parseDouble(part.substring(2));
+                    this.quality = Math.max(0.0, Math.min(1.0, Double.parseDouble(part.substring(2))));
                 } catch (NumberFormatException e) {
                     this.quality = 1.0; // Default quality value if parsing fails
                 }
@@ -33,4 +34,20 @@ class MediaType {
         return "*/*".equals(type);
     }
 
-}
\ No newline at end of file
+    /**
+     * @return how precisely this range matches the MIME type: 3 exact, 2 {@code type/*}, 1 {@code *}{@code /*}, 0 no match
+     */
+    public int specificity(String mime) {
+        if (type.equals(mime)) {
+            return 3;
+        }
+        if (isWildcard()) {
+            return 1;
+        }
+        if (type.endsWith("/*") && mime.startsWith(type.substring(0, type.length() - 1))) {
+            return 2;
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,96 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU cache of parsed SPARQL queries keyed by their normalised text (see {@link QueryNormaliser}).
+ * Callers pass the query already normalised.
+ * <p>
+ * Queries longer than {@code maxQueryLength} are parsed but never cached. With {@code admitOnSecondUse}
+ * a query is only cached the second time it is seen, so one-off queries do not evict the hot ones
+ * and drag the hit rate down.
+ * Cached parsed queries are shared: the sail clones the algebra before optimising it.
+ */
+public class ParsedQueryCache {
+
+    private final int maxEntries;
+    private final int maxQueryLength;
+    private final boolean admitOnSecondUse;
+    private final Map<String, ParsedQuery> cache;
+    private final Map<String, Boolean> seen;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+
+    public ParsedQueryCache(int maxEntries, int maxQueryLength, boolean admitOnSecondUse) {
+        this.maxEntries = maxEntries;
+        this.maxQueryLength = maxQueryLength;
+        this.admitOnSecondUse = admitOnSecondUse;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ParsedQuery> eldest) {
+                boolean evict = size() > ParsedQueryCache.this.maxEntries;
+                if (evict) {
+                    evictions.increment();
+                }
+                return evict;
+            }
+        };
+        this.seen = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > ParsedQueryCache.this.maxEntries;
+            }
+        };
+    }
+
+    public ParsedQuery get(String query) {
+        if (maxEntries <= 0 || query.length() > maxQueryLength) {
+            bypassed.increment();
+            return parse(query);
+        }
+        ParsedQuery parsed;
+        synchronized (cache) {
+            parsed = cache.get(query);
+        }
+        if (parsed != null) {
+            hits.increment();
+            return parsed;
+        }
+        misses.increment();
+        parsed = parse(query);
+        synchronized (cache) {
+            if (!admitOnSecondUse || seen.remove(query) != null) {
+                cache.put(query, parsed);
+            } else {
+                seen.put(query, Boolean.TRUE);
+            }
+        }
+        return parsed;
+    }
+
+    public Stats stats() {
+        int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        long h = hits.sum();
+        long m = misses.sum();
+        return new Stats(size, maxEntries, h, m, evictions.sum(), bypassed.sum(), h + m == 0 ? 0.0 : (double) h / (h + m));
+    }
+
+    private static ParsedQuery parse(String query) {
+        return QueryParserUtil.parseQuery(QueryLanguage.SPARQL, query, null);
+    }
+
+    public record Stats(int size, int maxEntries, long hits, long misses, long evictions, long bypassed, double hitRate) {
+    }
+}
@@ -0,0 +1,344 @@
+package smartrics.iotics.samples.http;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Single-flight evaluation of identical concurrent queries. A request for the same (normalised query, formats,
+ * epoch, time limit) as an evaluation in progress becomes one more subscriber of that {@link Flight}: it gets the
+ * serialised result from the start, then chunk by chunk as it is produced.
+ * <p>
+ * A flight takes subscribers while its output fits in {@code maxReplayBytes}, the copy kept for those joining
+ * late. Subscribers are written in turn, each with its own back-pressure, so a flight goes at the pace of its
+ * slowest client; it is cancelled when all of them have gone. A {@code maxReplayBytes} of 0 disables coalescing.
+ */
+public class QueryCoalescer implements MeterBinder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryCoalescer.class);
+
+    private final int maxReplayBytes;
+    private final Map<Key, Flight> flights = new ConcurrentHashMap<>();
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder joined = new LongAdder();
+
+    public QueryCoalescer(int maxReplayBytes) {
+        this.maxReplayBytes = maxReplayBytes;
+    }
+
+    /**
+     * @return the flight the caller has to evaluate the query for, or null if the request joined one in progress
+     */
+    Flight lead(String query, String formatsKey, long epoch, int timeoutSeconds, RoutingContext context) {
+        if (maxReplayBytes <= 0) {
+            evaluations.increment();
+            return new Flight(null, context);
+        }
+        Key key = new Key(query, formatsKey, epoch, timeoutSeconds);
+        while (true) {
+            Flight existing = flights.get(key);
+            if (existing != null) {
+                if (existing.join(context)) {
+                    joined.increment();
+                    return null;
+                }
+                flights.remove(key, existing);
+            }
+            Flight flight = new Flight(key, context);
+            if (flights.putIfAbsent(key, flight) == null) {
+                evaluations.increment();
+                return flight;
+            }
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(flights.size(), evaluations.sum(), joined.sum(), ratio());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("sparql.coalescing.in.flight", flights, Map::size).register(registry);
+        FunctionCounter.builder("sparql.coalescing.evaluations", evaluations, LongAdder::sum).register(registry);
+        FunctionCounter.builder("sparql.coalescing.joined", joined, LongAdder::sum).register(registry);
+        Gauge.builder("sparql.coalescing.ratio", this, QueryCoalescer::ratio)
+                .description("Share of query requests answered by joining an evaluation in progress")
+                .register(registry);
+    }
+
+    private double ratio() {
+        long joins = joined.sum();
+        long requests = joins + evaluations.sum();
+        return requests == 0 ? 0 : (double) joins / requests;
+    }
+
+    private record Key(String query, String formatsKey, long epoch, int timeoutSeconds) {
+    }
+
+    public record Stats(int inFlight, long evaluations, long joined, double ratio) {
+    }
+
+    /**
+     * The responses one evaluation is written to. Everything the evaluating thread would do to its own response
+     * goes through here, so that late subscribers get the same headers and bytes.
+     * <p>
+     * The flight's monitor only guards its state: writes to the responses, which may wait on back-pressure, are
+     * made outside it, under each subscriber's own lock. A request joining the flight therefore only waits for
+     * its own client, never for the slowest one already there.
+     */
+    final class Flight {
+        private final Key key;
+        private final List<Subscriber> subscribers = new ArrayList<>();
+        private final List<Map.Entry<CharSequence, CharSequence>> headers = new ArrayList<>();
+        private final AtomicInteger live = new AtomicInteger();
+        private final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Flight.this.write(b, off, len);
+            }
+        };
+        // what has been written so far, for late subscribers; null once no one else may join
+        private ByteArrayOutputStream replay = new ByteArrayOutputStream();
+        // only touched by the evaluating thread
+        private long bytesWritten;
+        private volatile Runnable onAbandoned;
+
+        private Flight(Key key, RoutingContext leader) {
+            this.key = key;
+            synchronized (this) {
+                live.incrementAndGet();
+                attach(leader);
+            }
+        }
+
+        OutputStream output() {
+            return output;
+        }
+
+        long bytesWritten() {
+            return bytesWritten;
+        }
+
+        /**
+         * @param onAbandoned run, on any thread, when the last subscriber has gone
+         */
+        void onAbandoned(Runnable onAbandoned) {
+            this.onAbandoned = onAbandoned;
+            if (live.get() == 0) {
+                onAbandoned.run();
+            }
+        }
+
+        synchronized void putHeader(CharSequence name, CharSequence value) {
+            headers.add(Map.entry(name, value));
+            for (Subscriber subscriber : subscribers) {
+                subscriber.response().putHeader(name, value);
+            }
+        }
+
+        /**
+         * Ends every response. A truncated result says why in a header, or in a trailer when the head has
+         * already gone out.
+         */
+        void complete(String truncation) {
+            for (Subscriber subscriber : close()) {
+                subscriber.lock().lock();
+                try {
+                    if (subscriber.gone().get()) {
+                        continue;
+                    }
+                    HttpServerResponse response = subscriber.response();
+                    if (truncation != null && !response.headWritten()) {
+                        response.putHeader(QueryLimits.TRUNCATED_HEADER, truncation);
+                        if ("timeout".equals(truncation)) {
+                            // another attempt may get further: not a representation to revalidate
+                            response.headers().remove(HttpHeaders.ETAG).remove(HttpHeaders.CACHE_CONTROL);
+                        }
+                    } else if (truncation != null) {
+                        response.putTrailer(QueryLimits.TRUNCATED_HEADER, truncation);
+                    }
+                    subscriber.out().close();
+                    response.end();
+                } catch (IOException | IllegalStateException e) {
+                    LOGGER.debug("subscriber gone before the end of the result", e);
+                } finally {
+                    subscriber.lock().unlock();
+                }
+            }
+        }
+
+        /**
+         * Sends the error to the responses that have not started yet; the others can only be dropped.
+         */
+        void fail(int statusCode, String message) {
+            for (Subscriber subscriber : close()) {
+                subscriber.lock().lock();
+                try {
+                    HttpServerResponse response = subscriber.response();
+                    if (subscriber.gone().get() || response.closed()) {
+                        continue;
+                    }
+                    if (!response.headWritten()) {
+                        response.setStatusCode(statusCode).end(message);
+                    } else {
+                        response.reset();
+                    }
+                } finally {
+                    subscriber.lock().unlock();
+                }
+            }
+        }
+
+        void failStreaming(Exception e) {
+            for (Subscriber subscriber : close()) {
+                subscriber.lock().lock();
+                try {
+                    HttpServerResponse response = subscriber.response();
+                    if (subscriber.gone().get() || response.closed()) {
+                        continue;
+                    }
+                    if (!response.headWritten()) {
+                        subscriber.context().fail(500, e);
+                    } else {
+                        // part of the body has already gone out: the only honest signal left is to drop the connection
+                        response.reset();
+                    }
+                } finally {
+                    subscriber.lock().unlock();
+                }
+            }
+        }
+
+        /**
+         * Stops taking subscribers; safe to call more than once.
+         */
+        void closeToJoiners() {
+            close();
+        }
+
+        // the subscribers, final from now on
+        private synchronized List<Subscriber> close() {
+            replay = null;
+            if (key != null) {
+                flights.remove(key, this);
+            }
+            return List.copyOf(subscribers);
+        }
+
+        private boolean join(RoutingContext context) {
+            Subscriber subscriber;
+            byte[] sent;
+            synchronized (this) {
+                // no joining a flight that is over, or about to be cancelled for lack of subscribers
+                if (replay == null || live.getAndUpdate(n -> n == 0 ? 0 : n + 1) == 0) {
+                    return false;
+                }
+                subscriber = attach(context);
+                headers.forEach(header -> subscriber.response().putHeader(header.getKey(), header.getValue()));
+                sent = replay.toByteArray();
+                // held until the replay is out, so the writer's next chunk cannot overtake it
+                subscriber.lock().lock();
+            }
+            try {
+                subscriber.out().write(sent);
+            } catch (IOException e) {
+                leave(subscriber);
+            } finally {
+                subscriber.lock().unlock();
+            }
+            return true;
+        }
+
+        // under the flight's monitor
+        private Subscriber attach(RoutingContext context) {
+            HttpServerResponse response = context.response();
+            response.setChunked(true);
+            Subscriber subscriber = new Subscriber(context, new ResponseOutputStream(response), new AtomicBoolean(), new ReentrantLock());
+            subscribers.add(subscriber);
+            // fails when the connection closes before the response ends; an end handler, not the response's single close handler
+            context.addEndHandler(ended -> {
+                if (ended.failed()) {
+                    leave(subscriber);
+                }
+            });
+            if (response.closed()) {
+                // gone before the handler was in place
+                leave(subscriber);
+            }
+            return subscriber;
+        }
+
+        // not synchronized: called on the event loop, which must not wait for a writer stuck on back-pressure
+        private void leave(Subscriber subscriber) {
+            if (subscriber.gone().compareAndSet(false, true) && live.decrementAndGet() == 0) {
+                Runnable abandoned = onAbandoned;
+                if (abandoned != null) {
+                    abandoned.run();
+                }
+            }
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            List<Subscriber> targets;
+            synchronized (this) {
+                if (replay != null && replay.size() + len > maxReplayBytes) {
+                    close();
+                } else if (replay != null) {
+                    replay.write(b, off, len);
+                }
+                targets = List.copyOf(subscribers);
+            }
+            bytesWritten += len;
+            boolean written = false;
+            for (Subscriber subscriber : targets) {
+                subscriber.lock().lock();
+                try {
+                    if (subscriber.gone().get()) {
+                        continue;
+                    }
+                    subscriber.out().write(b, off, len);
+                    written = true;
+                } catch (IOException e) {
+                    leave(subscriber);
+                } finally {
+                    subscriber.lock().unlock();
+                }
+            }
+            if (!written) {
+                throw new IOException("all clients closed their connection");
+            }
+        }
+    }
+
+    /**
+     * @param lock held while writing to the response, so that writes from the evaluating thread and a joining
+     *             request's replay never interleave
+     */
+    private record Subscriber(RoutingContext context, ResponseOutputStream out, AtomicBoolean gone, ReentrantLock lock) {
+        HttpServerResponse response() {
+            return context.response();
+        }
+    }
+}
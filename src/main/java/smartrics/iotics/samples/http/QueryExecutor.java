@@ -0,0 +1,141 @@
+package smartrics.iotics.samples.http;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded executor running SPARQL evaluations off the Vert.x event loop.
+ * Submissions beyond pool size + queue depth are rejected rather than queued without limit.
+ * <p>
+ * With platform threads this is a fixed pool. Virtual threads are not pooled: each task gets its own, and a
+ * semaphore of pool size permits bounds how many evaluate at once while the others wait parked.
+ */
+public class QueryExecutor implements MeterBinder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryExecutor.class);
+
+    private final String name;
+    private final int poolSize;
+    private final int queueDepth;
+    private final boolean virtualThreads;
+    private final ExecutorService executor;
+    // virtual threads only: tasks running or waiting, and tasks running
+    private final Semaphore accepted;
+    private final Semaphore running;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param name names the threads ({@code sparql-<name>-N}) and tags the metrics
+     */
+    public QueryExecutor(String name, int poolSize, int queueDepth, boolean virtualThreads) {
+        this.name = name;
+        this.poolSize = poolSize;
+        this.queueDepth = queueDepth;
+        this.virtualThreads = virtualThreads;
+        String threadName = "sparql-" + name + "-";
+        if (virtualThreads) {
+            this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(threadName, 0).factory());
+            this.accepted = new Semaphore(poolSize + queueDepth);
+            this.running = new Semaphore(poolSize);
+        } else {
+            this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueDepth), Thread.ofPlatform().name(threadName, 0).daemon(true).factory(),
+                    new ThreadPoolExecutor.AbortPolicy());
+            this.accepted = null;
+            this.running = null;
+        }
+        LOGGER.info("Query executor started [name={}][poolSize={}][queueDepth={}][virtualThreads={}]", name, poolSize, queueDepth, virtualThreads);
+    }
+
+    public void submit(Runnable task) throws RejectedExecutionException {
+        try {
+            if (virtualThreads) {
+                submitVirtual(task);
+            } else {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        completed.increment();
+                    }
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    public Stats stats() {
+        int active = active();
+        return new Stats(name, poolSize, active, queued(), queueDepth, completed.sum(), rejected.sum(), virtualThreads,
+                (double) active / poolSize);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("sparql.executor.active", this, QueryExecutor::active).tag("executor", name).register(registry);
+        Gauge.builder("sparql.executor.queued", this, QueryExecutor::queued).tag("executor", name).register(registry);
+        Gauge.builder("sparql.executor.pool.size", this, e -> e.poolSize).tag("executor", name).register(registry);
+        FunctionCounter.builder("sparql.executor.completed", completed, LongAdder::sum).tag("executor", name).register(registry);
+        FunctionCounter.builder("sparql.executor.rejected", rejected, LongAdder::sum).tag("executor", name).register(registry);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void submitVirtual(Runnable task) {
+        if (!accepted.tryAcquire()) {
+            throw new RejectedExecutionException("query executor " + name + " is full");
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    running.acquire();
+                    try {
+                        task.run();
+                    } finally {
+                        running.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    accepted.release();
+                    completed.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            accepted.release();
+            throw e;
+        }
+    }
+
+    private int active() {
+        return virtualThreads ? poolSize - running.availablePermits() : ((ThreadPoolExecutor) executor).getActiveCount();
+    }
+
+    private int queued() {
+        if (virtualThreads) {
+            return Math.max(0, poolSize + queueDepth - accepted.availablePermits() - active());
+        }
+        return ((ThreadPoolExecutor) executor).getQueue().size();
+    }
+
+    public record Stats(String name, int poolSize, int active, int queued, int queueDepth, long completed, long rejected,
+                        boolean virtualThreads, double utilisation) {
+    }
+}
@@ -0,0 +1,206 @@
+package smartrics.iotics.samples.http;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.GraphQueryResult;
+import org.eclipse.rdf4j.query.QueryInterruptedException;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.query.TupleQueryResultHandler;
+import org.eclipse.rdf4j.rio.RDFHandler;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounds on a single query: evaluation time, and rows and bytes of the result sent back.
+ * <p>
+ * The time limit is the RDF4J max execution time; a request may ask for less, never for more. A result that
+ * reaches the row or byte limit, or times out after its first row, is cut short but still closed properly by its
+ * writer, and flagged with the {@link #TRUNCATED_HEADER} header (a trailer when the head is already out).
+ * A limit of 0 means none.
+ */
+public class QueryLimits implements MeterBinder {
+    public static final String TRUNCATED_HEADER = "X-Result-Truncated";
+
+    private final int maxExecutionSeconds;
+    private final long maxRows;
+    private final long maxBytes;
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder cancellations = new LongAdder();
+    private final Map<String, LongAdder> truncations = Map.of("rows", new LongAdder(), "bytes", new LongAdder(), "timeout", new LongAdder());
+
+    public QueryLimits(int maxExecutionSeconds, long maxRows, long maxBytes) {
+        this.maxExecutionSeconds = Math.max(0, maxExecutionSeconds);
+        this.maxRows = Math.max(0, maxRows);
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * @param requestedSeconds the client's timeout; 0 or less for none
+     * @return the max execution time to set on the query, 0 for none
+     */
+    public int executionSeconds(int requestedSeconds) {
+        if (requestedSeconds <= 0) {
+            return maxExecutionSeconds;
+        }
+        return maxExecutionSeconds == 0 ? requestedSeconds : Math.min(requestedSeconds, maxExecutionSeconds);
+    }
+
+    /**
+     * @param bytesSent bytes of the result sent so far
+     */
+    Guard guard(LongSupplier bytesSent) {
+        return new Guard(bytesSent);
+    }
+
+    void timedOut() {
+        timeouts.increment();
+    }
+
+    public Stats stats() {
+        return new Stats(maxExecutionSeconds, maxRows, maxBytes, timeouts.sum(), cancellations.sum(),
+                truncations.get("rows").sum(), truncations.get("bytes").sum(), truncations.get("timeout").sum());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("sparql.query.timeouts", timeouts, LongAdder::sum)
+                .description("Queries that ran out of time, with or without a partial result")
+                .register(registry);
+        FunctionCounter.builder("sparql.query.cancellations", cancellations, LongAdder::sum)
+                .description("Queries stopped because the client went away")
+                .register(registry);
+        truncations.forEach((reason, count) -> FunctionCounter.builder("sparql.query.truncations", count, LongAdder::sum)
+                .tag("reason", reason)
+                .register(registry));
+    }
+
+    public record Stats(int maxExecutionSeconds, long maxRows, long maxBytes, long timeouts, long cancellations,
+                        long truncatedOnRows, long truncatedOnBytes, long truncatedOnTimeout) {
+    }
+
+    /**
+     * Copies one query result to its writer within the limits. {@link #cancel()} may be called from any thread,
+     * typically the event loop when the connection closes: the result being read is closed, which stops its
+     * evaluation.
+     */
+    final class Guard {
+        private final LongSupplier bytesSent;
+        private CloseableIteration<?> result;
+        private boolean cancelled;
+        private boolean finished;
+        private long rows;
+        private String truncation;
+
+        private Guard(LongSupplier bytesSent) {
+            this.bytesSent = bytesSent;
+        }
+
+        void report(TupleQueryResult result, TupleQueryResultHandler handler) {
+            if (start(result)) {
+                handler.startQueryResult(result.getBindingNames());
+                copy(result, handler::handleSolution);
+                if (!cancelled()) {
+                    handler.endQueryResult();
+                }
+            }
+        }
+
+        void report(GraphQueryResult result, RDFHandler handler) {
+            if (start(result)) {
+                handler.startRDF();
+                result.getNamespaces().forEach(handler::handleNamespace);
+                copy(result, handler::handleStatement);
+                if (!cancelled()) {
+                    handler.endRDF();
+                }
+            }
+        }
+
+        void cancel() {
+            CloseableIteration<?> toClose;
+            synchronized (this) {
+                if (finished || cancelled) {
+                    return;
+                }
+                cancelled = true;
+                toClose = result;
+            }
+            cancellations.increment();
+            if (toClose != null) {
+                toClose.close();
+            }
+        }
+
+        synchronized boolean cancelled() {
+            return cancelled;
+        }
+
+        long rows() {
+            return rows;
+        }
+
+        /**
+         * @return why the result was cut short ("rows", "bytes" or "timeout"), or null if it is complete
+         */
+        String truncation() {
+            return truncation;
+        }
+
+        private synchronized boolean start(CloseableIteration<?> result) {
+            this.result = result;
+            return !cancelled;
+        }
+
+        private <T> void copy(CloseableIteration<T> result, RowHandler<T> handler) {
+            try {
+                while (!cancelled()) {
+                    if (maxRows > 0 && rows >= maxRows) {
+                        truncate("rows");
+                        break;
+                    }
+                    if (maxBytes > 0 && bytesSent.getAsLong() >= maxBytes) {
+                        truncate("bytes");
+                        break;
+                    }
+                    if (!result.hasNext()) {
+                        break;
+                    }
+                    handler.handle(result.next());
+                    rows++;
+                }
+            } catch (QueryInterruptedException e) {
+                if (rows == 0) {
+                    // nothing worth sending: let the caller answer with an error
+                    throw e;
+                }
+                timedOut();
+                truncate("timeout");
+            } catch (RuntimeException e) {
+                // reading a result closed under our feet can fail in many ways
+                if (!cancelled()) {
+                    throw e;
+                }
+            } finally {
+                synchronized (this) {
+                    finished = true;
+                }
+            }
+        }
+
+        private void truncate(String reason) {
+            truncation = reason;
+            truncations.get(reason).increment();
+        }
+    }
+
+    @FunctionalInterface
+    private interface RowHandler<T> {
+        void handle(T row);
+    }
+}
@@ -0,0 +1,132 @@
+package smartrics.iotics.samples.http;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Canonical text form of a SPARQL query, used as cache key.
+ * <p>
+ * Comments are dropped and whitespace runs outside IRIs and literals collapse to a single space. In the prologue
+ * only the last declaration of each prefix is kept, and the declarations between two BASEs are sorted by prefix.
+ * BASEs stay where they are: a BASE applies to the declarations after it, so a prefix is never moved across one.
+ * The result is a valid query equivalent to the original; one redeclaring a prefix, which the RDF4J parser
+ * refuses, is read as if only the last declaration were there.
+ */
+public final class QueryNormaliser {
+
+    // on collapsed text; the prefix name is any PN_PREFIX, Unicode included
+    private static final Pattern PROLOGUE_DECL = Pattern.compile(
+            "\\G(?:(?i:PREFIX)\\s*([^\\s:<>#]*):\\s*<([^>]*)>|(?i:BASE)\\s*<([^>]*)>)\\s*");
+
+    private QueryNormaliser() {
+    }
+
+    public static String normalise(String query) {
+        String collapsed = collapse(query);
+        // segment i holds the prefixes declared after the i-th BASE (the first one: before any BASE)
+        List<String> bases = new ArrayList<>();
+        List<Map<String, String>> segments = new ArrayList<>();
+        segments.add(new TreeMap<>());
+        // prefix -> segment of its last declaration, the only one the body can see
+        Map<String, Integer> lastDeclared = new HashMap<>();
+        Matcher m = PROLOGUE_DECL.matcher(collapsed);
+        int bodyStart = 0;
+        while (m.find()) {
+            if (m.group(3) != null) {
+                bases.add(m.group(3));
+                segments.add(new TreeMap<>());
+            } else {
+                Integer previous = lastDeclared.put(m.group(1), segments.size() - 1);
+                if (previous != null) {
+                    segments.get(previous).remove(m.group(1));
+                }
+                segments.getLast().put(m.group(1), m.group(2));
+            }
+            bodyStart = m.end();
+        }
+        if (bodyStart == 0) {
+            return collapsed;
+        }
+        StringBuilder sb = new StringBuilder(collapsed.length());
+        for (int i = 0; i < segments.size(); i++) {
+            if (i > 0) {
+                sb.append("BASE <").append(bases.get(i - 1)).append("> ");
+            }
+            segments.get(i).forEach((prefix, iri) -> sb.append("PREFIX ").append(prefix).append(": <").append(iri).append("> "));
+        }
+        return sb.append(collapsed, bodyStart, collapsed.length()).toString();
+    }
+
+    private static String collapse(String query) {
+        StringBuilder sb = new StringBuilder(query.length());
+        int len = query.length();
+        int i = 0;
+        boolean pendingSpace = false;
+        while (i < len) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+                i++;
+                continue;
+            }
+            if (c == '#') {
+                while (i < len && query.charAt(i) != '\n' && query.charAt(i) != '\r') {
+                    i++;
+                }
+                pendingSpace = true;
+                continue;
+            }
+            if (pendingSpace && !sb.isEmpty()) {
+                sb.append(' ');
+            }
+            pendingSpace = false;
+            int end;
+            if (c == '"' || c == '\'') {
+                end = endOfLiteral(query, i);
+            } else if (c == '<') {
+                end = endOfIri(query, i);
+            } else {
+                end = i + 1;
+            }
+            sb.append(query, i, end);
+            i = end;
+        }
+        return sb.toString();
+    }
+
+    private static int endOfLiteral(String q, int start) {
+        char quote = q.charAt(start);
+        boolean longForm = q.startsWith(String.valueOf(quote).repeat(3), start);
+        int i = start + (longForm ? 3 : 1);
+        while (i < q.length()) {
+            char c = q.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote && (!longForm || q.startsWith(String.valueOf(quote).repeat(3), i))) {
+                return Math.min(q.length(), i + (longForm ? 3 : 1));
+            } else {
+                i++;
+            }
+        }
+        return q.length();
+    }
+
+    // an IRI ref has no whitespace before its closing '>'; otherwise '<' is the comparison operator
+    private static int endOfIri(String q, int start) {
+        for (int i = start + 1; i < q.length(); i++) {
+            char c = q.charAt(i);
+            if (c == '>') {
+                return i + 1;
+            }
+            if (Character.isWhitespace(c) || c == '<' || c == '"' || c == '{' || c == '}') {
+                break;
+            }
+        }
+        return start + 1;
+    }
+}
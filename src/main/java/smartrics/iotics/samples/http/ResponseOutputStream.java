@@ -0,0 +1,134 @@
+package smartrics.iotics.samples.http;
+
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OutputStream that forwards bytes to a (chunked) HttpServerResponse in bounded chunks.
+ * <p>
+ * When the response write queue is full the writing thread waits for the drain handler before
+ * sending the next chunk, so a slow client throttles the query rather than the heap.
+ * Waiting never happens on an event loop thread: there the chunk is queued as Vert.x would normally do.
+ */
+public class ResponseOutputStream extends OutputStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    private static final long DRAIN_POLL_MILLIS = 100;
+
+    private final HttpServerResponse response;
+    private final byte[] chunk;
+    private int count;
+    private long bytesWritten;
+    private boolean closed;
+
+    public ResponseOutputStream(HttpServerResponse response) {
+        this(response, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ResponseOutputStream(HttpServerResponse response, int chunkSize) {
+        this.response = response;
+        this.chunk = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        chunk[count++] = (byte) b;
+        if (count == chunk.length) {
+            sendChunk();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, chunk.length - count);
+            System.arraycopy(b, off, chunk, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == chunk.length) {
+                sendChunk();
+            }
+        }
+    }
+
+    /**
+     * No-op: chunks are sent when full or on close, to keep them bounded and avoid tiny writes
+     * from serialisers that flush eagerly.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Sends what is left. A body that fits in the first chunk is sent with a Content-Length rather
+     * than chunked, which also lets the endpoint skip compressing small responses.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (bytesWritten == 0 && !response.headWritten()) {
+            response.setChunked(false);
+            response.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(count));
+        }
+        if (count > 0) {
+            sendChunk();
+        }
+        closed = true;
+    }
+
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    private void sendChunk() throws IOException {
+        awaitWritable();
+        response.write(Buffer.buffer(Arrays.copyOf(chunk, count)));
+        bytesWritten += count;
+        count = 0;
+    }
+
+    private void awaitWritable() throws IOException {
+        if (!response.writeQueueFull() || Context.isOnEventLoopThread()) {
+            return;
+        }
+        CountDownLatch drained = new CountDownLatch(1);
+        response.drainHandler(v -> drained.countDown());
+        try {
+            // re-check after registering: the queue may have drained in between
+            while (response.writeQueueFull()) {
+                if (response.closed()) {
+                    throw new IOException("client closed connection");
+                }
+                if (drained.await(DRAIN_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for response to drain");
+        } finally {
+            response.drainHandler(null);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+    }
+}
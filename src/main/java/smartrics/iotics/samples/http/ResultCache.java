@@ -0,0 +1,162 @@
+package smartrics.iotics.samples.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serialised query results keyed by (normalised query, result mime type), tagged with the store epoch
+ * they were computed at.
+ * <p>
+ * An entry answers a request while the store is still at the same epoch, or within
+ * {@code min(requested, maxStaleEpochs)} epochs of it when the client opts into staleness.
+ * Memory is bounded by the total size of the cached bodies; least recently used entries go first.
+ */
+public class ResultCache {
+
+    public static final String MAX_STALE_EPOCHS_HEADER = "X-Max-Stale-Epochs";
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final long maxStaleEpochs;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResultCache(long maxBytes, int maxEntryBytes, long maxStaleEpochs) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.maxStaleEpochs = maxStaleEpochs;
+    }
+
+    public boolean enabled() {
+        return maxBytes > 0;
+    }
+
+    public Optional<Entry> get(String query, String mimeType, long epoch, long staleEpochs) {
+        long tolerance = Math.max(0, Math.min(staleEpochs, maxStaleEpochs));
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(new Key(query, mimeType));
+        }
+        if (entry == null || epoch - entry.epoch() > tolerance) {
+            misses.increment();
+            return Optional.empty();
+        }
+        if (entry.epoch() == epoch) {
+            hits.increment();
+        } else {
+            staleHits.increment();
+        }
+        return Optional.of(entry);
+    }
+
+    public void put(String query, String mimeType, long epoch, String contentType, byte[] body) {
+        if (body.length > maxEntryBytes || body.length > maxBytes) {
+            return;
+        }
+        Key key = new Key(query, mimeType);
+        synchronized (entries) {
+            Entry previous = entries.get(key);
+            if (previous != null) {
+                if (previous.epoch() > epoch) {
+                    return;
+                }
+                entries.remove(key);
+                totalBytes -= previous.body().length;
+            }
+            entries.put(key, new Entry(epoch, contentType, body));
+            totalBytes += body.length;
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Map.Entry<Key, Entry> eldest = it.next();
+                it.remove();
+                totalBytes -= eldest.getValue().body().length;
+                evictions.increment();
+            }
+        }
+    }
+
+    public Recorder recorder(String query, String mimeType, long epoch) {
+        return new Recorder(query, mimeType, epoch);
+    }
+
+    public Stats stats() {
+        synchronized (entries) {
+            return new Stats(entries.size(), totalBytes, maxBytes, hits.sum(), staleHits.sum(), misses.sum(), evictions.sum());
+        }
+    }
+
+    private record Key(String query, String mimeType) {
+    }
+
+    public record Entry(long epoch, String contentType, byte[] body) {
+    }
+
+    public record Stats(int entries, long bytes, long maxBytes, long hits, long staleHits, long misses, long evictions) {
+    }
+
+    /**
+     * Copies a result into the cache while it is streamed to the client.
+     * Recording is abandoned as soon as the result grows past the per-entry limit.
+     */
+    public class Recorder {
+        private final String query;
+        private final String mimeType;
+        private final long epoch;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private Recorder(String query, String mimeType, long epoch) {
+            this.query = query;
+            this.mimeType = mimeType;
+            this.epoch = epoch;
+        }
+
+        public OutputStream wrap(OutputStream out) {
+            if (!enabled()) {
+                return out;
+            }
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    if (copy != null) {
+                        copy.write(b);
+                        checkLimit();
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    if (copy != null) {
+                        copy.write(b, off, len);
+                        checkLimit();
+                    }
+                }
+            };
+        }
+
+        public void complete(String contentType) {
+            if (enabled() && copy != null) {
+                put(query, mimeType, epoch, contentType, copy.toByteArray());
+            }
+        }
+
+        private void checkLimit() {
+            if (copy.size() > maxEntryBytes) {
+                copy = null;
+            }
+        }
+    }
+}
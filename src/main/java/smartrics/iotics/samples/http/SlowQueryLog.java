@@ -0,0 +1,74 @@
+package smartrics.iotics.samples.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The last {@code capacity} queries that took longer than {@code thresholdMillis}, newest first, each with the
+ * optimised plan it ran with. Every slow query is also logged. A capacity of 0 disables it.
+ */
+public class SlowQueryLog {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlowQueryLog.class);
+
+    private final long thresholdNanos;
+    private final Entry[] ring;
+    private final LongAdder recorded = new LongAdder();
+    // next slot to write
+    private int next;
+
+    public SlowQueryLog(long thresholdMillis, int capacity) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.ring = new Entry[Math.max(0, capacity)];
+    }
+
+    public boolean enabled() {
+        return ring.length > 0;
+    }
+
+    public boolean isSlow(long durationNanos) {
+        return enabled() && durationNanos >= thresholdNanos;
+    }
+
+    public void record(String query, String type, String format, long durationNanos, long rows, String plan) {
+        Entry entry = new Entry(Instant.now().toString(), query, type, format, TimeUnit.NANOSECONDS.toMillis(durationNanos), rows, plan);
+        synchronized (ring) {
+            ring[next] = entry;
+            next = (next + 1) % ring.length;
+        }
+        recorded.increment();
+        LOGGER.warn("Slow query [millis={}][rows={}][type={}][query={}]", entry.millis(), rows, type, query);
+    }
+
+    public List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>(ring.length);
+        synchronized (ring) {
+            for (int i = 1; i <= ring.length; i++) {
+                Entry entry = ring[(next - i + ring.length) % ring.length];
+                if (entry == null) {
+                    break;
+                }
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    public Stats stats() {
+        return new Stats(TimeUnit.NANOSECONDS.toMillis(thresholdNanos), ring.length, recorded.sum());
+    }
+
+    /**
+     * @param rows solutions or statements sent; -1 if the query failed before completing
+     */
+    public record Entry(String at, String query, String type, String format, long millis, long rows, String plan) {
+    }
+
+    public record Stats(long thresholdMillis, int capacity, long recorded) {
+    }
+}
@@ -0,0 +1,201 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.common.transaction.IsolationLevels;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.Rio;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Periodic gzip'd binary RDF snapshots of the store, and restore from the latest one on startup.
+ * <p>
+ * Snapshots read under snapshot isolation, so writers and readers carry on while the export runs.
+ * A snapshot is written to a temporary file and moved over the previous one only once complete.
+ */
+public class SnapshotManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotManager.class);
+
+    private final Repository repository;
+    private final Path file;
+    private final long periodSeconds;
+    private final ScheduledExecutorService scheduler;
+
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicLong lastBytes = new AtomicLong();
+    private final AtomicLong lastMillis = new AtomicLong();
+    private final AtomicLong restoredStatements = new AtomicLong();
+    private final AtomicLong restoreMillis = new AtomicLong();
+    private volatile String restoreFailure;
+
+    public SnapshotManager(Repository repository, Path file, long periodSeconds) {
+        this.repository = repository;
+        this.file = file;
+        this.periodSeconds = periodSeconds;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("db-snapshot").daemon(true).factory());
+    }
+
+    public void start() {
+        if (periodSeconds > 0) {
+            scheduler.scheduleWithFixedDelay(this::snapshotQuietly, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Writes a last snapshot and waits for it. It runs on the snapshot thread, after any periodic one in progress,
+     * so an older export never replaces it.
+     */
+    public void shutdown() {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        scheduler.execute(this::snapshotQuietly);
+        scheduler.shutdown();
+        try {
+            while (!scheduler.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOGGER.info("Waiting for the final snapshot [file={}]", file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Loads the latest snapshot into the store in a single bulk transaction. Does nothing when there is
+     * no snapshot or the store already holds data (e.g. a persistent backend). A snapshot that cannot be read,
+     * truncated or corrupt, is logged and reported in the stats, and the store is left empty.
+     */
+    public void restore() {
+        if (!Files.isReadable(file)) {
+            LOGGER.info("No snapshot to restore at {}", file);
+            return;
+        }
+        long start = System.nanoTime();
+        try (RepositoryConnection conn = repository.getConnection()) {
+            if (!conn.isEmpty()) {
+                LOGGER.info("Store not empty, snapshot {} not restored", file);
+                return;
+            }
+            try (InputStream in = new GZIPInputStream(open(file), 64 * 1024)) {
+                conn.begin(IsolationLevels.NONE);
+                conn.add(in, RDFFormat.BINARY);
+                conn.commit();
+            } catch (IOException | RuntimeException e) {
+                if (conn.isActive()) {
+                    conn.rollback();
+                }
+                throw e;
+            }
+            restoredStatements.set(conn.size());
+        } catch (IOException | RuntimeException e) {
+            // RDF4J reports a corrupt file as a parse or repository exception
+            restoreFailure = String.valueOf(e.getMessage());
+            LOGGER.warn("unable to restore snapshot {}", file, e);
+            return;
+        }
+        restoreMillis.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        LOGGER.info("Snapshot restored [file={}][statements={}][millis={}]", file, restoredStatements.get(), restoreMillis.get());
+    }
+
+    public void snapshot() throws IOException {
+        long start = System.nanoTime();
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024));
+                 RepositoryConnection conn = repository.getConnection()) {
+                conn.begin(IsolationLevels.SNAPSHOT);
+                conn.export(Rio.createWriter(RDFFormat.BINARY, out));
+                conn.commit();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        snapshots.increment();
+        lastBytes.set(Files.size(file));
+        lastMillis.set(millis);
+        LOGGER.info("Snapshot written [file={}][bytes={}][millis={}]", file, lastBytes.get(), millis);
+    }
+
+    public Stats stats() {
+        return new Stats(file.toString(), snapshots.sum(), failures.sum(), lastBytes.get(), lastMillis.get(),
+                restoredStatements.get(), restoreMillis.get(), restoreFailure);
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (Exception e) {
+            failures.increment();
+            LOGGER.warn("unable to write snapshot {}", file, e);
+        }
+    }
+
+    private static InputStream open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return Files.newInputStream(file);
+            }
+            // the mapping stays valid after the channel is closed
+            return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * @param restoreFailure why the snapshot could not be restored on startup, null if it was or there was none
+     */
+    public record Stats(String file, long snapshots, long failures, long lastBytes, long lastMillis,
+                        long restoredStatements, long restoreMillis, String restoreFailure) {
+    }
+}
@@ -1,6 +1,12 @@
 package smartrics.iotics.samples.http;
 
+import com.google.gson.Gson;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.StandardCompressionOptions;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
@@ -10,39 +16,53 @@ import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
 import io.vertx.ext.web.handler.StaticHandler;
 import org.apache.logging.log4j.util.Strings;
-import org.eclipse.rdf4j.common.lang.FileFormat;
-import org.jetbrains.annotations.NotNull;
+import org.eclipse.rdf4j.query.explanation.Explanation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URLDecoder;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.stream.Collectors;
-
-import static smartrics.iotics.samples.http.ContentTypesMap.mimeFor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class SparqlEndpoint extends AbstractVerticle {
     private static final Logger LOGGER = LoggerFactory.getLogger(SparqlEndpoint.class);
+    private static final String RETRY_AFTER_SECONDS = "1";
+    private static final long KEEP_ALIVE_MILLIS = 15_000;
+
     private final Database database;
+    private final QueryExecutor queryExecutor;
+    private final PrometheusMeterRegistry meterRegistry;
+    private final AccessLogHandler accessLog;
+    private final SubscriptionManager subscriptions;
+    private final FeedHistory feedHistory;
+    private final AdmissionController admission;
+    private final int compressionLevel;
+    private final int compressionMinBytes;
+    private final boolean brotli;
+    private final boolean http2;
     private final String port;
     private final String securePort;
 
-    public SparqlEndpoint(String httpPort, String httpSecurePort, Database database) {
+    private SparqlEndpoint(String httpPort, String httpSecurePort, Database database, QueryExecutor queryExecutor,
+                           PrometheusMeterRegistry meterRegistry, AccessLogHandler accessLog, SubscriptionManager subscriptions,
+                           FeedHistory feedHistory, AdmissionController admission, int compressionLevel, int compressionMinBytes,
+                           boolean brotli, boolean http2) {
         this.database = database;
+        this.admission = admission;
+        this.subscriptions = subscriptions;
+        this.feedHistory = feedHistory;
+        this.compressionLevel = compressionLevel;
+        this.compressionMinBytes = compressionMinBytes;
+        this.brotli = brotli;
+        this.http2 = http2;
+        this.accessLog = accessLog;
+        this.queryExecutor = queryExecutor;
+        this.meterRegistry = meterRegistry;
         this.port = httpPort;
         this.securePort = httpSecurePort;
     }
 
-    private static String generateShortUUID() {
-        UUID uuid = UUID.randomUUID();
-        ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[16]);
-        byteBuffer.putLong(uuid.getMostSignificantBits());
-        byteBuffer.putLong(uuid.getLeastSignificantBits());
-        return Base64.getUrlEncoder().withoutPadding().encodeToString(byteBuffer.array());
-    }
-
     private static void getValidQuery(HttpServerRequest request) {
         String query = request.getParam("query");
         if ("get".equalsIgnoreCase(request.method().name())) {
@@ -77,38 +97,40 @@ public class SparqlEndpoint extends AbstractVerticle {
         }
     }
 
-    private static @NotNull FileFormat getValidAcceptedResultType(HttpServerRequest request) {
+    private static ContentNegotiator.Formats getValidAcceptedResultType(HttpServerRequest request) {
         String acceptHeader = request.getHeader("Accept");
-        String[] mediaRanges = acceptHeader.split(",");
-
-        List<MediaType> mediaTypes = Arrays.stream(mediaRanges)
-                .map(String::trim)
-                .map(MediaType::new)
-                .sorted(Comparator.comparingDouble(MediaType::getQuality).reversed())
-                .toList();
-
-        for (MediaType mediaType : mediaTypes) {
-            String type = mediaType.getType();
-            Optional<FileFormat> fileFormat = ContentTypesMap.get(type);
-            if (fileFormat.isPresent()) {
-                return fileFormat.get();
-            }
+        ContentNegotiator.Formats formats = ContentNegotiator.negotiate(acceptHeader);
+        if (!formats.acceptable()) {
+            throw new ValidationException(400, ErrorMessage.toJson("Unsupported response mime type: " + acceptHeader));
         }
-
-        throw new ValidationException(400, ErrorMessage.toJson("Unsupported response mime type: " + acceptHeader));
+        return formats;
     }
 
     public Router createRouter(Database database) {
         Router router = Router.router(vertx);
 
-        router.route().handler(this::logRequestAndResponse);
+        router.route().handler(accessLog);
+        if (compressionLevel > 0 && compressionMinBytes > 0) {
+            router.route().handler(this::skipCompressionWhenSmall);
+        }
 
         // Handle /health route separately
         router.get("/*").handler(StaticHandler.create("webroot"));
         router.get("/health").handler(this::handleHealth);
+        router.get("/status").handler(this::handleStatus);
+        router.get("/metrics").handler(this::handleMetrics);
+        router.get("/slow-queries").handler(this::handleSlowQueries);
+        if (subscriptions != null) {
+            router.get("/subscribe").handler(this::handleSubscribeEvents);
+            router.get("/subscribe/ws").handler(this::handleSubscribeWebSocket);
+        }
 
         // Apply the BodyHandler and validateRequest handler to the /sparql routes
         router.route("/sparql*").handler(BodyHandler.create()).handler(this::validateRequest);
+        if (admission != null) {
+            // /health, /status and /metrics are answered on the event loop and never wait for admission
+            router.route("/sparql*").handler(this::admit);
+        }
 
         // Define the /sparql routes
         router.get("/sparql").handler(ctx -> this.handleGet(ctx, database));
@@ -116,28 +138,44 @@ public class SparqlEndpoint extends AbstractVerticle {
         return router;
     }
 
-    private void logRequestAndResponse(RoutingContext ctx) {
-        String remoteAddress = ctx.request().remoteAddress().toString();
-        String uri = ctx.request().uri();
-        String absoluteUri = ctx.request().absoluteURI();
-        String method = ctx.request().method().toString();
-        String headers = ctx.request().headers().entries().stream().map(e -> e.getKey() + ":" + e.getValue()).collect(Collectors.joining(", "));
-        String id = generateShortUUID();
-
-        LOGGER.info("Request [id={}][URI={}][method={}][from={}][absoluteURI={}][headers={}]", id, uri, method, remoteAddress, absoluteUri, headers);
-        ctx.addBodyEndHandler(v -> {
-            int statusCode = ctx.response().getStatusCode();
-            String statusMessage = ctx.response().getStatusMessage();
-            String respHeaders = ctx.response().headers().entries().stream().map(e -> e.getKey() + ":" + e.getValue()).collect(Collectors.joining(", "));
-            LOGGER.info("Response [id={}][statusCode={}][statusMessage={}][headers={}]", id, statusCode, statusMessage, respHeaders);
+    /**
+     * Compressing a few hundred bytes costs more than it saves. Responses whose size is known when
+     * the headers go out (fixed length) and below the threshold are sent as they are.
+     */
+    private void skipCompressionWhenSmall(RoutingContext ctx) {
+        HttpServerResponse response = ctx.response();
+        ctx.addHeadersEndHandler(v -> {
+            String length = response.headers().get(HttpHeaders.CONTENT_LENGTH);
+            if (length != null && Long.parseLong(length) < compressionMinBytes) {
+                response.putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY);
+            }
         });
         ctx.next();
     }
 
+    private HttpServerOptions serverOptions() {
+        HttpServerOptions options = new HttpServerOptions()
+                .setHttp2ClearTextEnabled(http2);
+        if (compressionLevel > 0) {
+            options.setCompressionSupported(true)
+                    .setCompressionLevel(compressionLevel)
+                    .addCompressor(StandardCompressionOptions.gzip(compressionLevel, 15, 8))
+                    .addCompressor(StandardCompressionOptions.deflate(compressionLevel, 15, 8));
+            if (brotli) {
+                if (Brotli.isAvailable()) {
+                    options.addCompressor(StandardCompressionOptions.brotli());
+                } else {
+                    LOGGER.warn("brotli requested but not available, add brotli4j to the classpath", Brotli.cause());
+                }
+            }
+        }
+        return options;
+    }
+
     public void start() {
         Router router = createRouter(database);
-        LOGGER.info("Starting on port {}", port);
-        vertx.createHttpServer()
+        LOGGER.info("Starting on port {} [compressionLevel={}][http2={}]", port, compressionLevel, http2);
+        vertx.createHttpServer(serverOptions())
                 .requestHandler(router)
                 .listen(Integer.parseInt(port), http -> {
                     if (http.succeeded()) {
@@ -147,8 +185,9 @@ public class SparqlEndpoint extends AbstractVerticle {
                     }
                 });
 
-        // HTTPS server
-        HttpServerOptions options = new HttpServerOptions()
+        // HTTPS server: h2 is negotiated via ALPN, falling back to HTTP/1.1
+        HttpServerOptions options = serverOptions()
+                .setUseAlpn(http2)
                 .setSsl(true)
                 .setKeyCertOptions(new PemKeyCertOptions()
                         .setCertPath("./ssl/server.crt")
@@ -172,6 +211,154 @@ public class SparqlEndpoint extends AbstractVerticle {
         ctx.response().end("{ \"status\" : \"OK\" }");
     }
 
+    private void handleStatus(RoutingContext ctx) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("queryExecutor", queryExecutor.stats());
+        status.put("database", database.stats());
+        if (subscriptions != null) {
+            status.put("subscriptions", subscriptions.stats());
+        }
+        if (feedHistory != null) {
+            status.put("feedHistory", feedHistory.stats());
+        }
+        if (admission != null) {
+            status.put("admission", admission.stats());
+        }
+        ctx.response()
+                .putHeader("content-type", "application/json")
+                .end(new Gson().toJson(status));
+    }
+
+    private void handleSlowQueries(RoutingContext ctx) {
+        ctx.response()
+                .putHeader("content-type", "application/json")
+                .end(new Gson().toJson(database.slowQueries()));
+    }
+
+    private void handleMetrics(RoutingContext ctx) {
+        if (meterRegistry == null) {
+            ctx.response().setStatusCode(404).end();
+            return;
+        }
+        ctx.response()
+                .putHeader("content-type", TextFormat.CONTENT_TYPE_004)
+                .end(meterRegistry.scrape());
+    }
+
+    /**
+     * Server-Sent Events: a {@code reset} event with the full result, then {@code delta} events.
+     */
+    private void handleSubscribeEvents(RoutingContext ctx) {
+        String query = ctx.request().getParam("query");
+        if (query == null || query.isBlank()) {
+            sendError(400, ErrorMessage.toJson("missing query"), ctx.response());
+            return;
+        }
+        HttpServerResponse response = ctx.response();
+        SubscriptionManager.Sink sink = new SubscriptionManager.Sink() {
+            @Override
+            public boolean send(String event, String json) {
+                if (response.closed() || response.writeQueueFull()) {
+                    return false;
+                }
+                response.write("event: " + event + "\ndata: " + json + "\n\n");
+                return true;
+            }
+
+            @Override
+            public void close(String reason) {
+                if (!response.ended() && !response.closed()) {
+                    response.end("event: error\ndata: " + ErrorMessage.toJson(reason) + "\n\n");
+                }
+            }
+        };
+        SubscriptionManager.Subscription subscription;
+        try {
+            subscription = subscriptions.subscribe(query, sink);
+        } catch (IllegalArgumentException e) {
+            sendError(400, ErrorMessage.toJson(e.getMessage()), response);
+            return;
+        } catch (IllegalStateException e) {
+            response.putHeader("Retry-After", RETRY_AFTER_SECONDS);
+            sendError(503, ErrorMessage.toJson(e.getMessage()), response);
+            return;
+        }
+        long keepAlive = vertx.setPeriodic(KEEP_ALIVE_MILLIS, id -> {
+            if (!response.ended() && !response.closed()) {
+                response.write(": keep-alive\n\n");
+            }
+        });
+        // runs whether the client goes away or the stream is ended here (sink.close) on a kept-alive connection
+        ctx.addEndHandler(v -> {
+            vertx.cancelTimer(keepAlive);
+            subscriptions.unsubscribe(subscription);
+        });
+        response.setChunked(true)
+                .putHeader(HttpHeaders.CONTENT_TYPE, "text/event-stream")
+                .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache")
+                // events are small and must not sit in a compressor buffer
+                .putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY)
+                .putHeader("Access-Control-Allow-Origin", "*")
+                .write(": subscribed " + subscription.id() + "\n\n");
+        subscriptions.start(subscription);
+    }
+
+    /**
+     * WebSocket: one text frame per event, {@code {"event": ..., "data": ...}}.
+     */
+    private void handleSubscribeWebSocket(RoutingContext ctx) {
+        String query = ctx.request().getParam("query");
+        if (query == null || query.isBlank()) {
+            sendError(400, ErrorMessage.toJson("missing query"), ctx.response());
+            return;
+        }
+        ctx.request().toWebSocket().onSuccess(ws -> {
+            SubscriptionManager.Sink sink = new SubscriptionManager.Sink() {
+                @Override
+                public boolean send(String event, String json) {
+                    if (ws.isClosed() || ws.writeQueueFull()) {
+                        return false;
+                    }
+                    ws.writeTextMessage("{\"event\":\"" + event + "\",\"data\":" + json + "}");
+                    return true;
+                }
+
+                @Override
+                public void close(String reason) {
+                    ws.close((short) 1011, reason);
+                }
+            };
+            try {
+                SubscriptionManager.Subscription subscription = subscriptions.subscribe(query, sink);
+                ws.closeHandler(v -> subscriptions.unsubscribe(subscription));
+                subscriptions.start(subscription);
+            } catch (IllegalArgumentException e) {
+                ws.close((short) 1008, e.getMessage());
+            } catch (IllegalStateException e) {
+                ws.close((short) 1013, e.getMessage());
+            }
+        }).onFailure(e -> LOGGER.debug("websocket upgrade failed", e));
+    }
+
+    private void admit(RoutingContext ctx) {
+        String query = "application/sparql-query".equals(mimeType(ctx.request().getHeader("Content-Type")))
+                ? ctx.body().asString()
+                : ctx.request().getParam("query");
+        AdmissionController.Decision decision = admission.admit(admission.client(ctx.request()), AdmissionController.isPriority(query));
+        if (!decision.admitted()) {
+            ctx.response().putHeader("Retry-After", String.valueOf(decision.retryAfterSeconds()));
+            sendError(429, ErrorMessage.toJson(decision.reason()), ctx.response());
+            return;
+        }
+        // on end or on a broken connection, whichever comes first
+        ctx.addEndHandler(v -> admission.release());
+        ctx.next();
+    }
+
+    private static String mimeType(String contentType) {
+        return contentType == null ? null : contentType.split(";")[0].trim();
+    }
+
     private void handleGet(RoutingContext ctx, Database database) {
         try {
             String encodedQuery = ctx.request().getParam("query");
@@ -206,6 +393,7 @@ public class SparqlEndpoint extends AbstractVerticle {
                     { "sd:contentType": "application/sparql-results+xml" },
                     { "sd:contentType": "application/sparql-results+json" },
                     { "sd:contentType": "text/csv" },
+                    { "sd:contentType": "application/x-binary-rdf-results-table" },
                     { "sd:contentType": "application/rdf+xml" },
                     { "sd:contentType": "text/turtle" },
                     { "sd:contentType": "application/x-turtle" },
@@ -237,14 +425,20 @@ public class SparqlEndpoint extends AbstractVerticle {
     }
 
     private void handle(RoutingContext ctx, Database database, String query) {
+        Explanation.Level explain = explainLevel(ctx.request().getParam("explain"));
+        int timeoutSeconds = timeoutSeconds(ctx.request().getParam("timeout"));
         try {
-            FileFormat type = ctx.get("acceptedResponseType");
-            String mime = mimeFor(type);
-            if (mime != null) {
-                ctx.response().headers().set("Content-Type", mime);
-            }
+            ContentNegotiator.Formats formats = ctx.get("acceptedResponseType");
             ctx.response().headers().add("Access-Control-Allow-Origin", "*");
-            database.run(query, ctx, mime);
+            // evaluation can take arbitrarily long: keep it off the event loop
+            if (explain != null) {
+                queryExecutor.submit(() -> database.explain(query, explain, ctx, timeoutSeconds));
+            } else {
+                queryExecutor.submit(() -> database.run(query, ctx, formats, timeoutSeconds));
+            }
+        } catch (RejectedExecutionException e) {
+            ctx.response().putHeader("Retry-After", RETRY_AFTER_SECONDS);
+            sendError(503, ErrorMessage.toJson("too many queries in progress"), ctx.response());
         } catch (Exception e) {
             LOGGER.warn("exception when handling request", e);
             String message = e.getMessage();
@@ -255,6 +449,42 @@ public class SparqlEndpoint extends AbstractVerticle {
         }
     }
 
+    /**
+     * @return null for a normal query; {@code explain} with no value is {@code timed}
+     */
+    private static Explanation.Level explainLevel(String explain) {
+        if (explain == null) {
+            return null;
+        }
+        if (explain.isEmpty() || "true".equalsIgnoreCase(explain)) {
+            return Explanation.Level.Timed;
+        }
+        for (Explanation.Level level : Explanation.Level.values()) {
+            if (level.name().equalsIgnoreCase(explain)) {
+                return level;
+            }
+        }
+        throw new ValidationException(400, ErrorMessage.toJson("explain must be one of " + Arrays.toString(Explanation.Level.values())));
+    }
+
+    /**
+     * @return the {@code timeout} parameter in seconds, 0 when absent
+     */
+    private static int timeoutSeconds(String timeout) {
+        if (timeout == null) {
+            return 0;
+        }
+        try {
+            int seconds = Integer.parseInt(timeout.trim());
+            if (seconds > 0) {
+                return seconds;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new ValidationException(400, ErrorMessage.toJson("timeout must be a positive number of seconds"));
+    }
+
     private void sendError(int statusCode, String message, HttpServerResponse response) {
         response.setStatusCode(statusCode).setStatusMessage(message).end();
     }
@@ -264,8 +494,7 @@ public class SparqlEndpoint extends AbstractVerticle {
             HttpServerRequest request = ctx.request();
             validateGraphName(ctx);
             getValidQuery(request);
-            FileFormat mappedAccepted = getValidAcceptedResultType(request);
-            ctx.put("acceptedResponseType", mappedAccepted);
+            ctx.put("acceptedResponseType", getValidAcceptedResultType(request));
 
             ctx.next();
         } catch (ValidationException e) {
@@ -273,6 +502,99 @@ public class SparqlEndpoint extends AbstractVerticle {
         }
     }
 
+    public static final class SparqlEndpointBuilder {
+        private String httpPort;
+        private String httpSecurePort;
+        private Database database;
+        private QueryExecutor queryExecutor;
+        private PrometheusMeterRegistry meterRegistry;
+        private AccessLogHandler accessLog = new AccessLogHandler(List.of(), 1.0);
+        private SubscriptionManager subscriptions;
+        private FeedHistory feedHistory;
+        private AdmissionController admission;
+        private int compressionLevel;
+        private int compressionMinBytes;
+        private boolean brotli;
+        private boolean http2;
+
+        private SparqlEndpointBuilder() {
+        }
+
+        public static SparqlEndpointBuilder aSparqlEndpoint() {
+            return new SparqlEndpointBuilder();
+        }
+
+        public SparqlEndpointBuilder withHttpPort(String httpPort) {
+            this.httpPort = httpPort;
+            return this;
+        }
+
+        public SparqlEndpointBuilder withHttpSecurePort(String httpSecurePort) {
+            this.httpSecurePort = httpSecurePort;
+            return this;
+        }
+
+        public SparqlEndpointBuilder withDatabase(Database database) {
+            this.database = database;
+            return this;
+        }
+
+        public SparqlEndpointBuilder withQueryExecutor(QueryExecutor queryExecutor) {
+            this.queryExecutor = queryExecutor;
+            return this;
+        }
+
+        public SparqlEndpointBuilder withMeterRegistry(PrometheusMeterRegistry meterRegistry) {
+            this.meterRegistry = meterRegistry;
+            return this;
+        }
+
+        public SparqlEndpointBuilder withAccessLog(AccessLogHandler accessLog) {
+            this.accessLog = accessLog;
+            return this;
+        }
+
+        public SparqlEndpointBuilder withSubscriptions(SubscriptionManager subscriptions) {
+            this.subscriptions = subscriptions;
+            return this;
+        }
+
+        public SparqlEndpointBuilder withFeedHistory(FeedHistory feedHistory) {
+            this.feedHistory = feedHistory;
+            return this;
+        }
+
+        /**
+         * Shared by all instances, so the limits hold across event loops.
+         */
+        public SparqlEndpointBuilder withAdmission(AdmissionController admission) {
+            this.admission = admission;
+            return this;
+        }
+
+        /**
+         * @param level    1 (fastest) to 9 (smallest); 0 disables compression
+         * @param minBytes responses with a known length below this are not compressed
+         * @param brotli   also offer brotli, when brotli4j is on the classpath
+         */
+        public SparqlEndpointBuilder withCompression(int level, int minBytes, boolean brotli) {
+            this.compressionLevel = level;
+            this.compressionMinBytes = minBytes;
+            this.brotli = brotli;
+            return this;
+        }
+
+        public SparqlEndpointBuilder withHttp2(boolean http2) {
+            this.http2 = http2;
+            return this;
+        }
+
+        public SparqlEndpoint build() {
+            return new SparqlEndpoint(httpPort, httpSecurePort, database, queryExecutor, meterRegistry, accessLog, subscriptions,
+                    feedHistory, admission, compressionLevel, compressionMinBytes, brotli, http2);
+        }
+    }
+
     public static class ValidationException extends RuntimeException {
         private final int code;
 
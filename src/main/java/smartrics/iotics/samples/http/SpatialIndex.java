@@ -0,0 +1,204 @@
+package smartrics.iotics.samples.http;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.util.Values;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Grid index over the {@code geo:asWKT} POINT literals of the store, answering
+ * <pre>
+ * PREFIX spatial: &lt;http://smartrics.iotics/spatial#&gt;
+ * SELECT ?car WHERE {
+ *     ?geometry spatial:nearby (51.5074 -0.1278 2) .   # lat, lon, radius in km
+ *     ?value geo:hasGeometry ?geometry ; iotics:twinID ?car .
+ * }
+ * </pre>
+ * with the geometries whose point is within the radius (great-circle distance). Points fall in square cells of
+ * {@code cellDegrees}; a lookup only visits the cells overlapping the circle's bounding box. A geometry has one
+ * point: a new {@code geo:asWKT} value replaces the previous one. Other WKT shapes are not indexed, and circles
+ * crossing the antimeridian are not wrapped.
+ */
+public class SpatialIndex implements MagicPredicate, MeterBinder {
+    public static final IRI NEARBY = Values.iri("http://smartrics.iotics/spatial#", "nearby");
+    private static final IRI AS_WKT = Values.iri("http://www.opengis.net/ont/geosparql#", "asWKT");
+    private static final double KM_PER_DEGREE = 111.32;
+    private static final double EARTH_RADIUS_KM = 6371.0;
+
+    private final double cellDegrees;
+    private final Map<Resource, Point> points = new ConcurrentHashMap<>();
+    private final Map<Long, Set<Resource>> cells = new ConcurrentHashMap<>();
+
+    public SpatialIndex(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+    }
+
+    @Override
+    public IRI predicate() {
+        return NEARBY;
+    }
+
+    @Override
+    public Set<IRI> sources() {
+        return Set.of(AS_WKT);
+    }
+
+    @Override
+    public void apply(ChangeSet changes) {
+        if (!changes.predicates().contains(AS_WKT)) {
+            return;
+        }
+        for (Statement st : changes.removed()) {
+            if (AS_WKT.equals(st.getPredicate())) {
+                remove(st.getSubject());
+            }
+        }
+        for (Statement st : changes.added()) {
+            if (AS_WKT.equals(st.getPredicate())) {
+                Point point = parsePoint(st.getObject());
+                if (point == null) {
+                    remove(st.getSubject());
+                } else {
+                    put(st.getSubject(), point);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Collection<? extends Value> subjects(List<Value> arguments) {
+        if (arguments.size() != 3 || !(arguments.get(0) instanceof Literal lat) || !(arguments.get(1) instanceof Literal lon)
+                || !(arguments.get(2) instanceof Literal km)) {
+            throw new IllegalArgumentException("spatial:nearby expects (lat lon radiusKm)");
+        }
+        try {
+            return nearby(lat.doubleValue(), lon.doubleValue(), km.doubleValue());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("spatial:nearby expects numeric (lat lon radiusKm)", e);
+        }
+    }
+
+    /**
+     * @return the indexed geometries within {@code radiusKm} of the point
+     */
+    public Collection<Resource> nearby(double lat, double lon, double radiusKm) {
+        double dLat = radiusKm / KM_PER_DEGREE;
+        double cosLat = Math.cos(Math.toRadians(lat));
+        // near the poles the box spans every longitude
+        double dLon = cosLat < 1e-6 ? 180 : Math.min(180, radiusKm / (KM_PER_DEGREE * cosLat));
+        long minRow = cell(lat - dLat);
+        long maxRow = cell(lat + dLat);
+        long minCol = cell(lon - dLon);
+        long maxCol = cell(lon + dLon);
+        // a set: a geometry being moved may briefly be in two cells
+        Set<Resource> found = new HashSet<>();
+        if ((maxRow - minRow + 1) * (maxCol - minCol + 1) > cells.size()) {
+            // the box covers more cells than are occupied: checking every point is cheaper
+            points.forEach((subject, point) -> collect(subject, point, lat, lon, radiusKm, found));
+            return found;
+        }
+        for (long row = minRow; row <= maxRow; row++) {
+            for (long col = minCol; col <= maxCol; col++) {
+                Set<Resource> subjects = cells.get(key(row, col));
+                if (subjects != null) {
+                    for (Resource subject : subjects) {
+                        Point point = points.get(subject);
+                        if (point != null) {
+                            collect(subject, point, lat, lon, radiusKm, found);
+                        }
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("spatial.index.points", points, Map::size).register(registry);
+        Gauge.builder("spatial.index.cells", cells, Map::size).register(registry);
+    }
+
+    private void collect(Resource subject, Point point, double lat, double lon, double radiusKm, Set<Resource> found) {
+        if (distanceKm(lat, lon, point.lat(), point.lon()) <= radiusKm) {
+            found.add(subject);
+        }
+    }
+
+    private void put(Resource subject, Point point) {
+        Point previous = points.put(subject, point);
+        if (previous != null && previous.cell() != point.cell()) {
+            removeFromCell(previous.cell(), subject);
+        }
+        if (previous == null || previous.cell() != point.cell()) {
+            cells.computeIfAbsent(point.cell(), k -> ConcurrentHashMap.newKeySet()).add(subject);
+        }
+    }
+
+    private void remove(Resource subject) {
+        Point previous = points.remove(subject);
+        if (previous != null) {
+            removeFromCell(previous.cell(), subject);
+        }
+    }
+
+    private void removeFromCell(long cell, Resource subject) {
+        cells.computeIfPresent(cell, (k, subjects) -> {
+            subjects.remove(subject);
+            return subjects.isEmpty() ? null : subjects;
+        });
+    }
+
+    private Point parsePoint(Value value) {
+        // "POINT(lon lat)", optionally preceded by a CRS IRI
+        String wkt = value.stringValue();
+        int start = wkt.indexOf("POINT");
+        int open = wkt.indexOf('(', start);
+        int close = wkt.indexOf(')', open);
+        if (start < 0 || open < 0 || close < 0) {
+            return null;
+        }
+        String[] coordinates = wkt.substring(open + 1, close).trim().split("\\s+");
+        if (coordinates.length < 2) {
+            return null;
+        }
+        try {
+            double lon = Double.parseDouble(coordinates[0]);
+            double lat = Double.parseDouble(coordinates[1]);
+            return new Point(lat, lon, key(cell(lat), cell(lon)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private long cell(double degrees) {
+        return (long) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long key(long row, long col) {
+        return (row << 32) | (col & 0xffffffffL);
+    }
+
+    private static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.sqrt(a));
+    }
+
+    private record Point(double lat, double lon, long cell) {
+    }
+}
@@ -0,0 +1,52 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.eclipse.rdf4j.sail.nativerdf.NativeStore;
+
+import java.nio.file.Path;
+
+/**
+ * Storage behind the {@link Database}.
+ */
+public enum StoreBackend {
+
+    /**
+     * Heap only: starts empty on every restart.
+     */
+    MEMORY {
+        @Override
+        Sail create(Path dataDir, long syncDelayMillis) {
+            return new MemoryStore();
+        }
+    },
+
+    /**
+     * Heap store persisted to the data directory, written at most every {@code syncDelayMillis}
+     * (0 = on every commit) and reloaded in full on startup.
+     */
+    MEMORY_PERSISTENT {
+        @Override
+        Sail create(Path dataDir, long syncDelayMillis) {
+            MemoryStore store = new MemoryStore(dataDir.toFile());
+            store.setPersist(true);
+            store.setSyncDelay(syncDelayMillis);
+            return store;
+        }
+    },
+
+    /**
+     * Disk-based B-tree store in the data directory; data is read from disk on demand so it is
+     * queryable as soon as the store is open.
+     */
+    NATIVE {
+        @Override
+        Sail create(Path dataDir, long syncDelayMillis) {
+            NativeStore store = new NativeStore(dataDir.toFile(), "spoc,posc,cspo");
+            store.setForceSync(syncDelayMillis == 0);
+            return store;
+        }
+    };
+
+    abstract Sail create(Path dataDir, long syncDelayMillis);
+}
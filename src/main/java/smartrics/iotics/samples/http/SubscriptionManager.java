@@ -0,0 +1,328 @@
+package smartrics.iotics.samples.http;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.eclipse.rdf4j.model.BNode;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.vocabulary.XSD;
+import org.eclipse.rdf4j.query.Binding;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.helpers.collectors.StatementPatternCollector;
+import org.eclipse.rdf4j.query.parser.ParsedTupleQuery;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Standing SELECT queries whose result changes are pushed to subscribers.
+ * <p>
+ * A subscription depends on the predicates of its statement patterns (or on everything when a
+ * pattern has a variable predicate). A committed {@link ChangeSet} touching one of them marks it
+ * dirty; it is then re-evaluated on its own executor and the difference with the previous
+ * result sent as added/removed bindings. Changes arriving while a re-evaluation is pending or
+ * running are folded into the next one, so a subscription is never evaluated more than once at a time.
+ */
+public class SubscriptionManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionManager.class);
+
+    private final Database database;
+    private final QueryExecutor executor;
+    private final int maxSubscriptions;
+    private final int maxRows;
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    // slots taken, reserved before a subscription is registered so the limit holds under concurrent subscribes
+    private final AtomicInteger slots = new AtomicInteger();
+
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder deltas = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private SubscriptionManager(Database database, QueryExecutor executor, int maxSubscriptions, int maxRows) {
+        this.database = database;
+        this.executor = executor;
+        this.maxSubscriptions = maxSubscriptions;
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * @return a manager listening to the changes committed to the database
+     */
+    public static SubscriptionManager create(Database database, QueryExecutor executor, int maxSubscriptions, int maxRows) {
+        SubscriptionManager manager = new SubscriptionManager(database, executor, maxSubscriptions, maxRows);
+        database.addChangeListener(manager::onChange);
+        return manager;
+    }
+
+    /**
+     * Registers the query. Nothing is sent until {@link #start(Subscription)}.
+     *
+     * @throws IllegalArgumentException if the query is not a valid SELECT
+     * @throws IllegalStateException    if the subscription limit is reached
+     */
+    public Subscription subscribe(String query, Sink sink) {
+        if (!reserveSlot()) {
+            throw new IllegalStateException("too many subscriptions");
+        }
+        Subscription subscription;
+        try {
+            String normalised = QueryNormaliser.normalise(query);
+            ParsedTupleQuery parsed = QueryParserUtil.parseTupleQuery(QueryLanguage.SPARQL, normalised, null);
+            subscription = new Subscription("sub-" + ids.incrementAndGet(), normalised, dependencies(parsed, database), sink);
+        } catch (Exception e) {
+            slots.decrementAndGet();
+            throw new IllegalArgumentException("not a valid SELECT query: " + e.getMessage(), e);
+        }
+        subscriptions.put(subscription.id, subscription);
+        LOGGER.info("Subscribed [id={}][predicates={}]", subscription.id,
+                subscription.predicates == null ? "*" : subscription.predicates.size());
+        return subscription;
+    }
+
+    /**
+     * Schedules the first evaluation, sent as a {@code reset} event with the full result.
+     */
+    public void start(Subscription subscription) {
+        schedule(subscription);
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        if (subscriptions.remove(subscription.id) != null) {
+            slots.decrementAndGet();
+            LOGGER.info("Unsubscribed [id={}]", subscription.id);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(subscriptions.size(), maxSubscriptions, evaluations.sum(), coalesced.sum(), deltas.sum(),
+                resyncs.sum(), rejected.sum(), executor.stats());
+    }
+
+    private boolean reserveSlot() {
+        while (true) {
+            int taken = slots.get();
+            if (taken >= maxSubscriptions) {
+                return false;
+            }
+            if (slots.compareAndSet(taken, taken + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void onChange(ChangeSet changes) {
+        for (Subscription subscription : subscriptions.values()) {
+            if (subscription.dependsOn(changes.predicates())) {
+                schedule(subscription);
+            }
+        }
+    }
+
+    private void schedule(Subscription subscription) {
+        subscription.dirty.set(true);
+        if (!subscription.scheduled.compareAndSet(false, true)) {
+            coalesced.increment();
+            return;
+        }
+        try {
+            executor.submit(() -> refresh(subscription));
+        } catch (RejectedExecutionException e) {
+            // left dirty: picked up by the next change that touches it
+            subscription.scheduled.set(false);
+            rejected.increment();
+        }
+    }
+
+    private void refresh(Subscription subscription) {
+        try {
+            while (subscription.dirty.getAndSet(false) && subscriptions.containsKey(subscription.id)) {
+                evaluate(subscription);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("subscription evaluation failed, closing [id={}]", subscription.id, e);
+            // slot freed first: a client reconnecting on close is not refused
+            unsubscribe(subscription);
+            subscription.sink.close(e.getMessage());
+        } finally {
+            subscription.scheduled.set(false);
+        }
+        // a change may have landed between the last check and clearing the flag
+        if (subscription.dirty.get() && subscriptions.containsKey(subscription.id)) {
+            schedule(subscription);
+        }
+    }
+
+    private void evaluate(Subscription subscription) {
+        long epoch = database.epoch();
+        List<BindingSet> result = database.select(subscription.query, maxRows);
+        evaluations.increment();
+        if (maxRows > 0 && result.size() > maxRows) {
+            throw new IllegalStateException("result exceeds " + maxRows + " rows");
+        }
+        Map<Map<String, Value>, Integer> current = new HashMap<>();
+        for (BindingSet bs : result) {
+            current.merge(toMap(bs), 1, Integer::sum);
+        }
+        if (subscription.resync || subscription.last == null) {
+            if (subscription.sink.send("reset", toJson(subscription.id, epoch, current, Collections.emptyMap()))) {
+                subscription.last = current;
+                subscription.resync = false;
+            } else {
+                resyncs.increment();
+            }
+            return;
+        }
+        Map<Map<String, Value>, Integer> added = difference(current, subscription.last);
+        Map<Map<String, Value>, Integer> removed = difference(subscription.last, current);
+        subscription.last = current;
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        if (subscription.sink.send("delta", toJson(subscription.id, epoch, added, removed))) {
+            deltas.increment();
+        } else {
+            // the client can't keep up: drop the delta and send the full result once it can
+            subscription.resync = true;
+            resyncs.increment();
+        }
+    }
+
+    private static Map<Map<String, Value>, Integer> difference(Map<Map<String, Value>, Integer> a, Map<Map<String, Value>, Integer> b) {
+        Map<Map<String, Value>, Integer> diff = new HashMap<>();
+        a.forEach((row, count) -> {
+            int n = count - b.getOrDefault(row, 0);
+            if (n > 0) {
+                diff.put(row, n);
+            }
+        });
+        return diff;
+    }
+
+    private static Map<String, Value> toMap(BindingSet bs) {
+        Map<String, Value> row = new HashMap<>();
+        for (Binding binding : bs) {
+            row.put(binding.getName(), binding.getValue());
+        }
+        return row;
+    }
+
+    /**
+     * @return the predicates the query reads, or null if it has a variable predicate and may read any;
+     * a magic predicate reads the predicates its index is built from
+     */
+    private static Set<IRI> dependencies(ParsedTupleQuery parsed, Database database) {
+        Set<IRI> predicates = new HashSet<>();
+        for (StatementPattern pattern : StatementPatternCollector.process(parsed.getTupleExpr())) {
+            Var predicate = pattern.getPredicateVar();
+            if (!predicate.hasValue() || !(predicate.getValue() instanceof IRI iri)) {
+                return null;
+            }
+            predicates.add(iri);
+            database.magicPredicate(iri).ifPresent(magicPredicate -> predicates.addAll(magicPredicate.sources()));
+        }
+        return predicates;
+    }
+
+    private static String toJson(String id, long epoch, Map<Map<String, Value>, Integer> added, Map<Map<String, Value>, Integer> removed) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        json.addProperty("epoch", epoch);
+        json.add("added", toJson(added));
+        json.add("removed", toJson(removed));
+        return json.toString();
+    }
+
+    private static JsonArray toJson(Map<Map<String, Value>, Integer> rows) {
+        JsonArray array = new JsonArray();
+        rows.forEach((row, count) -> {
+            JsonObject bindings = new JsonObject();
+            row.forEach((name, value) -> bindings.add(name, toJson(value)));
+            for (int i = 0; i < count; i++) {
+                array.add(bindings);
+            }
+        });
+        return array;
+    }
+
+    // SPARQL 1.1 JSON results binding form
+    private static JsonObject toJson(Value value) {
+        JsonObject json = new JsonObject();
+        json.addProperty("type", switch (value) {
+            case IRI iri -> "uri";
+            case BNode bNode -> "bnode";
+            default -> "literal";
+        });
+        json.addProperty("value", value.stringValue());
+        if (value instanceof Literal literal) {
+            literal.getLanguage().ifPresentOrElse(lang -> json.addProperty("xml:lang", lang), () -> {
+                if (!XSD.STRING.equals(literal.getDatatype())) {
+                    json.addProperty("datatype", literal.getDatatype().stringValue());
+                }
+            });
+        }
+        return json;
+    }
+
+    /**
+     * Where a subscription's events go: an SSE stream or a WebSocket.
+     */
+    public interface Sink {
+        /**
+         * @return false if the event could not be queued because the client is not keeping up
+         */
+        boolean send(String event, String json);
+
+        void close(String reason);
+    }
+
+    public static final class Subscription {
+        private final String id;
+        private final String query;
+        private final Set<IRI> predicates;
+        private final Sink sink;
+        private final AtomicBoolean dirty = new AtomicBoolean();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // only touched by the (single) evaluation in progress
+        private Map<Map<String, Value>, Integer> last;
+        private boolean resync;
+
+        private Subscription(String id, String query, Set<IRI> predicates, Sink sink) {
+            this.id = id;
+            this.query = query;
+            this.predicates = predicates;
+            this.sink = sink;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        private boolean dependsOn(Set<IRI> changed) {
+            return predicates == null || !Collections.disjoint(predicates, changed);
+        }
+    }
+
+    public record Stats(int subscriptions, int maxSubscriptions, long evaluations, long coalesced, long deltas,
+                        long resyncs, long rejected, QueryExecutor.Stats executor) {
+    }
+}
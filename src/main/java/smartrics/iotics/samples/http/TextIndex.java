@@ -0,0 +1,153 @@
+package smartrics.iotics.samples.http;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.util.Values;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Inverted index over the literals of a configured set of predicates, answering
+ * <pre>
+ * PREFIX text: &lt;http://smartrics.iotics/text#&gt;
+ * SELECT ?car ?label WHERE { ?car text:search "merc grey" ; rdfs:label ?label }
+ * </pre>
+ * with the subjects whose indexed literals, taken together, have a word starting with each word of the search,
+ * ignoring case. Words are the runs of letters and digits, so {@code "benz"} finds {@code "Mercedes-Benz"}.
+ */
+public class TextIndex implements MagicPredicate, MeterBinder {
+    public static final IRI SEARCH = Values.iri("http://smartrics.iotics/text#", "search");
+
+    private final Set<IRI> predicates;
+    // word -> subjects; sorted, so the words starting with a prefix are a contiguous range
+    private final NavigableMap<String, Set<Resource>> postings = new ConcurrentSkipListMap<>();
+    // subject -> word -> number of indexed statements of the subject containing it; only touched by apply
+    private final Map<Resource, Map<String, Integer>> words = new HashMap<>();
+
+    public TextIndex(Set<IRI> predicates) {
+        this.predicates = Set.copyOf(predicates);
+    }
+
+    @Override
+    public IRI predicate() {
+        return SEARCH;
+    }
+
+    @Override
+    public Set<IRI> sources() {
+        return predicates;
+    }
+
+    @Override
+    public synchronized void apply(ChangeSet changes) {
+        if (changes.predicates().stream().noneMatch(predicates::contains)) {
+            return;
+        }
+        for (Statement st : changes.removed()) {
+            if (indexed(st)) {
+                Map<String, Integer> counts = words.get(st.getSubject());
+                for (String word : tokenise(st.getObject().stringValue())) {
+                    if (counts != null && counts.merge(word, -1, Integer::sum) <= 0) {
+                        counts.remove(word);
+                        postings.computeIfPresent(word, (k, subjects) -> {
+                            subjects.remove(st.getSubject());
+                            return subjects.isEmpty() ? null : subjects;
+                        });
+                    }
+                }
+                if (counts != null && counts.isEmpty()) {
+                    words.remove(st.getSubject());
+                }
+            }
+        }
+        for (Statement st : changes.added()) {
+            if (indexed(st)) {
+                Map<String, Integer> counts = words.computeIfAbsent(st.getSubject(), k -> new HashMap<>());
+                for (String word : tokenise(st.getObject().stringValue())) {
+                    if (counts.merge(word, 1, Integer::sum) == 1) {
+                        postings.computeIfAbsent(word, k -> ConcurrentHashMap.newKeySet()).add(st.getSubject());
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public Collection<? extends Value> subjects(List<Value> arguments) {
+        if (arguments.size() != 1 || !(arguments.getFirst() instanceof Literal text)) {
+            throw new IllegalArgumentException("text:search expects a string");
+        }
+        return search(text.getLabel());
+    }
+
+    /**
+     * @return the subjects matching every word of the text as a prefix; none if the text has no words
+     */
+    public Set<Resource> search(String text) {
+        List<Set<Resource>> matches = new ArrayList<>();
+        for (String prefix : tokenise(text)) {
+            Set<Resource> subjects = new HashSet<>();
+            postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values().forEach(subjects::addAll);
+            if (subjects.isEmpty()) {
+                return Set.of();
+            }
+            matches.add(subjects);
+        }
+        if (matches.isEmpty()) {
+            return Set.of();
+        }
+        matches.sort(Comparator.comparingInt(Set::size));
+        Set<Resource> result = matches.getFirst();
+        for (int i = 1; i < matches.size() && !result.isEmpty(); i++) {
+            result.retainAll(matches.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("text.index.words", postings, Map::size).register(registry);
+        Gauge.builder("text.index.subjects", this, TextIndex::subjectCount).register(registry);
+    }
+
+    private synchronized int subjectCount() {
+        return words.size();
+    }
+
+    private boolean indexed(Statement st) {
+        return predicates.contains(st.getPredicate()) && st.getObject() instanceof Literal;
+    }
+
+    private static Set<String> tokenise(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
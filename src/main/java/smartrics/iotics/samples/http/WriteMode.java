@@ -0,0 +1,90 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.query.QueryResults;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How {@link Database#set(Resource, Model)} brings the state of the subjects in a model up to date.
+ * REPLACE and DELTA keep everything in the default graph and ignore the graph passed in.
+ */
+public enum WriteMode {
+
+    /**
+     * Removes every statement of every subject in the model, then adds the model.
+     */
+    REPLACE {
+        @Override
+        Changes apply(RepositoryConnection conn, Resource graph, Model model) {
+            int removed = 0;
+            for (Resource subject : model.subjects()) {
+                List<Statement> current = QueryResults.asList(conn.getStatements(subject, null, null, false));
+                conn.remove(current);
+                removed += current.size();
+            }
+            conn.add(model);
+            return new Changes(removed, model.size(), 0);
+        }
+    },
+
+    /**
+     * Compares the incoming statements of each subject with the stored ones and only removes and adds
+     * the difference: unchanged statements (point names, ids, twin ids) are left alone.
+     */
+    DELTA {
+        @Override
+        Changes apply(RepositoryConnection conn, Resource graph, Model model) {
+            List<Statement> toRemove = new ArrayList<>();
+            List<Statement> toAdd = new ArrayList<>();
+            int unchanged = 0;
+            for (Resource subject : model.subjects()) {
+                Model incoming = model.filter(subject, null, null);
+                Model current = QueryResults.asModel(conn.getStatements(subject, null, null, false));
+                for (Statement st : current) {
+                    if (incoming.contains(st)) {
+                        unchanged++;
+                    } else {
+                        toRemove.add(st);
+                    }
+                }
+                for (Statement st : incoming) {
+                    if (!current.contains(st)) {
+                        toAdd.add(st);
+                    }
+                }
+            }
+            conn.remove(toRemove);
+            conn.add(toAdd);
+            return new Changes(toRemove.size(), toAdd.size(), unchanged);
+        }
+    },
+
+    /**
+     * Each write owns a named graph (a twin feed): its previous content is dropped with a single clear
+     * and the model added in its place. Writes without a graph fall back to REPLACE.
+     * Queries without a dataset see the union of all graphs, so existing queries are unaffected.
+     */
+    GRAPH {
+        @Override
+        Changes apply(RepositoryConnection conn, Resource graph, Model model) {
+            if (graph == null) {
+                return REPLACE.apply(conn, null, model);
+            }
+            // counted through the graph's own index, before the single clear
+            long removed = conn.size(graph);
+            conn.clear(graph);
+            conn.add(model, graph);
+            return new Changes(Math.toIntExact(removed), model.size(), 0);
+        }
+    };
+
+    abstract Changes apply(RepositoryConnection conn, Resource graph, Model model);
+
+    record Changes(int removed, int added, int unchanged) {
+    }
+}
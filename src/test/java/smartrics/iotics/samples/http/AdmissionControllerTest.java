@@ -0,0 +1,102 @@
+package smartrics.iotics.samples.http;
+
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.net.SocketAddress;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AdmissionControllerTest {
+
+    @Test
+    void prioritisesAskQueriesWhateverTheirPrologue() {
+        assertTrue(AdmissionController.isPriority("ASK { ?s ?p ?o }"));
+        assertTrue(AdmissionController.isPriority("  ask{?s ?p ?o}"));
+        assertTrue(AdmissionController.isPriority("# probe\nPREFIX ex: <http://ex.org/>\nBASE <http://ex.org/>\nASK { ex:a ?p ?o }"));
+        assertTrue(AdmissionController.isPriority("PREFIX : <http://ex.org/> PREFIX ex-1.a:<http://ex.org/> ASK {}"));
+    }
+
+    @Test
+    void doesNotPrioritiseAnythingElse() {
+        assertFalse(AdmissionController.isPriority(null));
+        assertFalse(AdmissionController.isPriority("SELECT * WHERE { ?s ?p ?o }"));
+        assertFalse(AdmissionController.isPriority("SELECT ?ask WHERE { ?s ?p ?ask } # ASK"));
+        assertFalse(AdmissionController.isPriority("# ASK\nSELECT * WHERE { ?s ?p ?o }"));
+        assertFalse(AdmissionController.isPriority("PREFIX ask: <http://ex.org/> SELECT * WHERE { ?s ask:p ?o }"));
+        assertFalse(AdmissionController.isPriority("ASKING"));
+    }
+
+    @Test
+    void keepsTheLastSlotsForPriorityQueries() {
+        AdmissionController admission = new AdmissionController(null, 0, 1, 3, 1, 100);
+
+        assertTrue(admission.admit("a", false).admitted());
+        assertTrue(admission.admit("a", false).admitted());
+        AdmissionController.Decision refused = admission.admit("a", false);
+        assertTrue(admission.admit("a", true).admitted());
+        AdmissionController.Decision full = admission.admit("a", true);
+
+        assertFalse(refused.admitted());
+        assertEquals(1, refused.retryAfterSeconds());
+        assertFalse(full.admitted());
+        assertEquals(3, admission.stats().inFlight());
+        assertEquals(2, admission.stats().rejectedConcurrency());
+    }
+
+    @Test
+    void freesASlotOnRelease() {
+        AdmissionController admission = new AdmissionController(null, 0, 1, 1, 0, 100);
+        assertTrue(admission.admit("a", false).admitted());
+        assertFalse(admission.admit("a", false).admitted());
+
+        admission.release();
+
+        assertTrue(admission.admit("a", false).admitted());
+    }
+
+    @Test
+    void limitsEachClientToItsBurstThenItsRate() {
+        // a token every 1000 seconds: none comes back during the test
+        AdmissionController admission = new AdmissionController(null, 0.001, 2, 0, 0, 100);
+
+        assertTrue(admission.admit("a", false).admitted());
+        assertTrue(admission.admit("a", false).admitted());
+        AdmissionController.Decision limited = admission.admit("a", false);
+
+        assertFalse(limited.admitted());
+        assertTrue(limited.retryAfterSeconds() > 990 && limited.retryAfterSeconds() <= 1000, "" + limited.retryAfterSeconds());
+        assertTrue(admission.admit("b", false).admitted());
+        assertEquals(1, admission.stats().rejectedRate());
+        assertEquals(2, admission.stats().clients());
+    }
+
+    @Test
+    void givesBackTheSlotOfARateLimitedQuery() {
+        AdmissionController admission = new AdmissionController(null, 0.001, 1, 1, 0, 100);
+        assertTrue(admission.admit("a", false).admitted());
+        admission.release();
+
+        assertFalse(admission.admit("a", false).admitted());
+
+        assertEquals(0, admission.stats().inFlight());
+        assertTrue(admission.admit("b", false).admitted());
+    }
+
+    @Test
+    void identifiesClientsByKeyOrElseByAddress() {
+        AdmissionController admission = new AdmissionController("X-Api-Key", 0, 1, 0, 0, 100);
+        HttpServerRequest withKey = mock(HttpServerRequest.class);
+        when(withKey.getHeader("X-Api-Key")).thenReturn("secret");
+        HttpServerRequest withoutKey = mock(HttpServerRequest.class);
+        when(withoutKey.getHeader("X-Api-Key")).thenReturn(" ");
+        when(withoutKey.remoteAddress()).thenReturn(SocketAddress.inetSocketAddress(1234, "10.0.0.1"));
+
+        assertEquals("key:secret", admission.client(withKey));
+        assertEquals("10.0.0.1", admission.client(withoutKey));
+        assertEquals("unknown", admission.client(mock(HttpServerRequest.class)));
+    }
+}
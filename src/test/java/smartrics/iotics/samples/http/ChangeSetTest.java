@@ -0,0 +1,59 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.util.Values;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeSetTest {
+    private static final IRI CAR = Values.iri("http://ex.org/car");
+    private static final IRI NAME = Values.iri("http://ex.org/name");
+    private static final IRI SPEED = Values.iri("http://ex.org/speed");
+
+    @Test
+    void collectsNetChanges() {
+        Statement oldSpeed = Values.getValueFactory().createStatement(CAR, SPEED, Values.literal(10));
+        Statement newSpeed = Values.getValueFactory().createStatement(CAR, SPEED, Values.literal(20));
+        ChangeSet.Collector collector = new ChangeSet.Collector();
+
+        collector.statementRemoved(oldSpeed);
+        collector.statementAdded(newSpeed);
+        ChangeSet changes = collector.toChangeSet(7);
+
+        assertEquals(7, changes.epoch());
+        assertEquals(List.of(newSpeed), changes.added());
+        assertEquals(List.of(oldSpeed), changes.removed());
+        assertEquals(Set.of(SPEED), changes.predicates());
+    }
+
+    @Test
+    void removedAndAddedBackCancelsOut() {
+        // what REPLACE does to a statement that has not changed
+        Statement name = Values.getValueFactory().createStatement(CAR, NAME, Values.literal("car"));
+        ChangeSet.Collector collector = new ChangeSet.Collector();
+
+        collector.statementRemoved(name);
+        collector.statementAdded(name);
+
+        assertTrue(collector.toChangeSet(1).isEmpty());
+    }
+
+    @Test
+    void addedAndRemovedAgainCancelsOut() {
+        Statement name = Values.getValueFactory().createStatement(CAR, NAME, Values.literal("car"));
+        ChangeSet.Collector collector = new ChangeSet.Collector();
+
+        collector.statementAdded(name);
+        collector.statementRemoved(name);
+        ChangeSet changes = collector.toChangeSet(1);
+
+        assertTrue(changes.isEmpty());
+        assertTrue(changes.predicates().isEmpty());
+    }
+}
@@ -0,0 +1,104 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ContentNegotiatorTest {
+
+    @Test
+    void missingHeaderGetsTheServerPreference() {
+        ContentNegotiator.Formats formats = ContentNegotiator.negotiate(null);
+
+        assertEquals(TupleQueryResultFormat.JSON, formats.tuple());
+        assertEquals("application/sparql-results+json", formats.tupleMime());
+        assertEquals(RDFFormat.TURTLE, formats.rdf());
+        assertSame(formats, ContentNegotiator.negotiate(" "));
+    }
+
+    @Test
+    void highestQualityWins() {
+        ContentNegotiator.Formats formats = ContentNegotiator.negotiate(
+                "application/sparql-results+json;q=0.5, text/csv;q=0.9, application/n-triples;q=0.8, text/turtle;q=0.1");
+
+        assertEquals(TupleQueryResultFormat.CSV, formats.tuple());
+        assertEquals(RDFFormat.NTRIPLES, formats.rdf());
+    }
+
+    @Test
+    void mostSpecificRangeDecidesTheQuality() {
+        // text/csv is excluded even though text/* would take it at 1
+        ContentNegotiator.Formats formats = ContentNegotiator.negotiate("text/*, text/csv;q=0");
+
+        assertEquals(TupleQueryResultFormat.TSV, formats.tuple());
+        assertEquals("text/tab-separated-values", formats.tupleMime());
+    }
+
+    @Test
+    void tiesGoToTheMoreSpecificMatchThenToTheFirstListed() {
+        assertEquals(TupleQueryResultFormat.CSV, ContentNegotiator.negotiate("*/*, text/csv").tuple());
+        assertEquals(TupleQueryResultFormat.TSV,
+                ContentNegotiator.negotiate("text/tab-separated-values, text/csv").tuple());
+    }
+
+    @Test
+    void labelsTheResponseWithTheMimeTypeThatMatched() {
+        ContentNegotiator.Formats formats = ContentNegotiator.negotiate("application/json");
+
+        assertEquals(TupleQueryResultFormat.JSON, formats.tuple());
+        assertEquals("application/json", formats.tupleMime());
+    }
+
+    @Test
+    void wildcardNeverSelectsBinary() {
+        assertNotEquals(TupleQueryResultFormat.BINARY, ContentNegotiator.negotiate("*/*").tuple());
+        assertNotEquals(RDFFormat.BINARY, ContentNegotiator.negotiate("*/*").rdf());
+        assertEquals(RDFFormat.BINARY, ContentNegotiator.negotiate("application/x-binary-rdf").rdf());
+    }
+
+    @Test
+    void servesTheBinaryResultsTableWhenItIsPreferred() {
+        ContentNegotiator.Formats binary = ContentNegotiator.negotiate(
+                "application/sparql-results+json;q=0.9, application/x-binary-rdf-results-table");
+        ContentNegotiator.Formats json = ContentNegotiator.negotiate(
+                "application/sparql-results+json, application/x-binary-rdf-results-table;q=0.5");
+
+        assertEquals(TupleQueryResultFormat.BINARY, binary.tuple());
+        assertEquals("application/x-binary-rdf-results-table", binary.tupleMime());
+        assertEquals(TupleQueryResultFormat.JSON, json.tuple());
+        assertNotEquals(binary.key(), json.key());
+    }
+
+    @Test
+    void acceptsOnlyWhatItServes() {
+        ContentNegotiator.Formats rdfOnly = ContentNegotiator.negotiate("text/turtle");
+        ContentNegotiator.Formats none = ContentNegotiator.negotiate("image/png");
+
+        assertNull(rdfOnly.tuple());
+        assertEquals(RDFFormat.TURTLE, rdfOnly.rdf());
+        assertFalse(none.acceptable());
+    }
+
+    @Test
+    void mediaTypeParsesQualityValues() {
+        assertEquals(0.3, new MediaType("text/csv; q=0.3").getQuality());
+        assertEquals(1.0, new MediaType("text/csv").getQuality());
+        assertEquals(1.0, new MediaType("text/csv;q=2").getQuality());
+        assertEquals(0.0, new MediaType("text/csv;q=-1").getQuality());
+        assertEquals(1.0, new MediaType("text/csv;q=high").getQuality());
+    }
+
+    @Test
+    void mediaTypeSpecificity() {
+        assertEquals(3, new MediaType("Text/CSV").specificity("text/csv"));
+        assertEquals(2, new MediaType("text/*").specificity("text/csv"));
+        assertEquals(1, new MediaType("*").specificity("text/csv"));
+        assertEquals(0, new MediaType("application/*").specificity("text/csv"));
+    }
+}
@@ -0,0 +1,272 @@
+package smartrics.iotics.samples.http;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.model.util.Values;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryResults;
+import org.eclipse.rdf4j.query.explanation.Explanation;
+import org.eclipse.rdf4j.query.resultio.QueryResultIO;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.Rio;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DatabaseTest {
+    private static final IRI NAME = Values.iri("http://ex.org/name");
+    private static final IRI SPEED = Values.iri("http://ex.org/speed");
+    private static final int CARS = 2000;
+    private static final String COUNT = "SELECT (COUNT(*) AS ?n) WHERE { ?s ?p ?o }";
+
+    @Test
+    void streamsSelectResultsInBoundedChunks() {
+        Database database = loaded();
+        Client client = new Client();
+
+        database.run("SELECT ?s ?name WHERE { ?s <http://ex.org/name> ?name }", client.context, ContentNegotiator.negotiate("text/csv"), 0);
+
+        client.assertStreamed();
+        String[] lines = client.body().toString().split("\r\n");
+        assertEquals(CARS + 1, lines.length);
+        assertEquals("s,name", lines[0]);
+    }
+
+    @Test
+    void streamsSelectResultsInTheBinaryResultsTable() throws IOException {
+        Database database = loaded();
+        Client client = new Client();
+
+        database.run("SELECT ?s ?speed WHERE { ?s <http://ex.org/speed> ?speed }", client.context,
+                ContentNegotiator.negotiate("application/x-binary-rdf-results-table"), 0);
+
+        client.assertStreamed();
+        verify(client.response).putHeader((CharSequence) "Content-Type", "application/x-binary-rdf-results-table");
+        List<BindingSet> rows = QueryResults.asList(QueryResultIO.parseTuple(
+                new ByteArrayInputStream(client.body().toByteArray()), TupleQueryResultFormat.BINARY, null));
+        assertEquals(CARS, rows.size());
+    }
+
+    @Test
+    void streamsConstructResultsInBoundedChunks() throws IOException {
+        Database database = loaded();
+        Client client = new Client();
+
+        database.run("CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }", client.context, ContentNegotiator.negotiate("application/n-triples"), 0);
+
+        client.assertStreamed();
+        verify(client.response).putHeader((CharSequence) "content-type", RDFFormat.NTRIPLES.getDefaultMIMEType());
+        Model parsed = Rio.parse(new ByteArrayInputStream(client.body().toByteArray()), RDFFormat.NTRIPLES);
+        assertEquals(2 * CARS, parsed.size());
+    }
+
+    @Test
+    void keepsCountOfTheStatementsInEveryWriteMode() {
+        for (WriteMode mode : WriteMode.values()) {
+            Database database = Database.DatabaseBuilder.aDatabase().withWriteMode(mode).build();
+            try {
+                for (int round = 0; round < 3; round++) {
+                    for (int car = 0; car < 5; car++) {
+                        database.set(Values.iri("http://ex.org/feed" + car), model(car, round));
+                    }
+                }
+                database.drop(Values.iri("http://ex.org/feed0"));
+                database.flush();
+
+                assertEquals(count(database), database.size(), mode.name());
+            } finally {
+                database.shutdown();
+            }
+        }
+    }
+
+    private static long count(Database database) {
+        Client client = new Client();
+        database.run(COUNT, client.context, ContentNegotiator.negotiate("text/csv"), 0);
+        return Long.parseLong(client.body().toString().split("\r\n")[1]);
+    }
+
+    private static Model model(int car, int round) {
+        IRI subject = Values.iri("http://ex.org/car" + car);
+        Model model = new LinkedHashModel();
+        model.add(subject, NAME, Values.literal("car " + car));
+        model.add(subject, SPEED, Values.literal(round));
+        if (round == 1) {
+            model.add(subject, Values.iri("http://ex.org/note"), Values.literal("only once"));
+        }
+        return model;
+    }
+
+    @Test
+    void explainsThePlanWithoutSendingResults() {
+        Database database = loaded();
+        Client client = new Client();
+
+        database.explain("SELECT ?s WHERE { ?s <http://ex.org/speed> ?speed }", Explanation.Level.Optimized, client.context, 0);
+
+        verify(client.response).putHeader("content-type", "application/json");
+        verify(client.response, never()).write(any(Buffer.class));
+        assertTrue(client.ended.get().contains("StatementPattern"), client.ended.get());
+    }
+
+    @Test
+    void explainFailsOnAQueryItCannotParse() {
+        Database database = loaded();
+        Client client = new Client();
+
+        database.explain("SELECT nonsense", Explanation.Level.Optimized, client.context, 0);
+
+        verify(client.response).setStatusCode(500);
+    }
+
+    @Test
+    void recordsSlowQueriesWithTheirRowsAndPlan() {
+        Database database = loaded(new SlowQueryLog(0, 10));
+        Client client = new Client();
+
+        database.run("SELECT ?s WHERE { ?s <http://ex.org/speed> ?speed }", client.context,
+                ContentNegotiator.negotiate("text/csv"), 0);
+
+        List<SlowQueryLog.Entry> entries = database.slowQueries();
+        assertEquals(1, entries.size());
+        assertEquals(CARS, entries.getFirst().rows());
+        assertEquals("select", entries.getFirst().type());
+        assertTrue(entries.getFirst().plan().contains("StatementPattern"), entries.getFirst().plan());
+        assertEquals(1, database.stats().slowQueries().recorded());
+    }
+
+    @Test
+    void leavesFastQueriesOutOfTheSlowLog() {
+        Database database = loaded(new SlowQueryLog(60_000, 10));
+
+        database.run("ASK { ?s ?p ?o }", new Client().context, ContentNegotiator.negotiate(null), 0);
+
+        assertTrue(database.slowQueries().isEmpty());
+    }
+
+    @Test
+    void answersAMatchingIfNoneMatchWithNotModified() {
+        Database database = loaded();
+        String query = "SELECT ?s WHERE { ?s <http://ex.org/speed> ?speed }";
+        Client first = new Client();
+        database.run(query, first.context, ContentNegotiator.negotiate("text/csv"), 0);
+        String etag = first.etag();
+
+        Client revalidating = new Client();
+        when(revalidating.request.getHeader(HttpHeaders.IF_NONE_MATCH)).thenReturn(etag);
+        database.run(query, revalidating.context, ContentNegotiator.negotiate("text/csv"), 0);
+
+        verify(revalidating.response).setStatusCode(304);
+        verify(revalidating.response, never()).write(any(Buffer.class));
+        assertEquals(etag, revalidating.etag());
+    }
+
+    @Test
+    void answersInFullOnceTheStoreHasChanged() {
+        Database database = loaded();
+        String query = "SELECT ?s WHERE { ?s <http://ex.org/speed> ?speed }";
+        Client first = new Client();
+        database.run(query, first.context, ContentNegotiator.negotiate("text/csv"), 0);
+        String etag = first.etag();
+        database.set(model(0, 1));
+
+        Client revalidating = new Client();
+        when(revalidating.request.getHeader(HttpHeaders.IF_NONE_MATCH)).thenReturn(etag);
+        database.run(query, revalidating.context, ContentNegotiator.negotiate("text/csv"), 0);
+
+        verify(revalidating.response, never()).setStatusCode(304);
+        revalidating.assertStreamed();
+        assertNotEquals(etag, revalidating.etag());
+    }
+
+    private static Database loaded() {
+        return loaded(new SlowQueryLog(0, 0));
+    }
+
+    private static Database loaded(SlowQueryLog slowQueryLog) {
+        Database database = Database.DatabaseBuilder.aDatabase()
+                .withParsedQueryCache(new ParsedQueryCache(0, 0, false))
+                .withSlowQueryLog(slowQueryLog)
+                .build();
+        for (int car = 0; car < CARS; car++) {
+            IRI subject = Values.iri("http://ex.org/car" + car);
+            Model model = new LinkedHashModel();
+            model.add(subject, NAME, Values.literal("car " + car));
+            model.add(subject, SPEED, Values.literal(car));
+            database.set(model);
+        }
+        return database;
+    }
+
+    private static class Client {
+        final RoutingContext context = mock(RoutingContext.class);
+        final HttpServerRequest request = mock(HttpServerRequest.class);
+        final HttpServerResponse response = mock(HttpServerResponse.class);
+        final List<Buffer> chunks = new CopyOnWriteArrayList<>();
+        final AtomicReference<String> ended = new AtomicReference<>();
+
+        Client() {
+            when(context.request()).thenReturn(request);
+            when(request.method()).thenReturn(HttpMethod.GET);
+            when(context.response()).thenReturn(response);
+            when(response.headers()).thenReturn(MultiMap.caseInsensitiveMultiMap());
+            when(response.setStatusCode(anyInt())).thenReturn(response);
+            when(response.putHeader(anyString(), anyString())).thenReturn(response);
+            when(response.end(anyString())).thenAnswer(i -> {
+                ended.set(i.getArgument(0));
+                return null;
+            });
+            when(response.write(any(Buffer.class))).thenAnswer(i -> {
+                chunks.add(i.getArgument(0));
+                return null;
+            });
+        }
+
+        void assertStreamed() {
+            verify(response).setChunked(true);
+            verify(response).end();
+            verify(context, never()).fail(any(Integer.class), any());
+            assertTrue(chunks.size() > 1, "expected more than one chunk, got " + chunks.size());
+            chunks.forEach(c -> assertTrue(c.length() <= ResponseOutputStream.DEFAULT_CHUNK_SIZE));
+        }
+
+        String etag() {
+            ArgumentCaptor<CharSequence> etag = ArgumentCaptor.forClass(CharSequence.class);
+            verify(response).putHeader(eq(HttpHeaders.ETAG), etag.capture());
+            return etag.getValue().toString();
+        }
+
+        ByteArrayOutputStream body() {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            chunks.forEach(c -> body.writeBytes(c.getBytes()));
+            return body;
+        }
+    }
+}
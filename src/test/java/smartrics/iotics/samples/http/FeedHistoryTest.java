@@ -0,0 +1,107 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FeedHistoryTest {
+    private static final String CAR = "http://ex.org/car";
+
+    private final long now = System.currentTimeMillis();
+
+    @Test
+    void keepsLateSamplesInTimeOrder() {
+        FeedHistory history = new FeedHistory(60_000, 10);
+        history.record(CAR, now - 1000, 1, 1, 10);
+        history.record(CAR, now - 3000, 3, 3, 30);
+        history.record(CAR, now - 2000, 2, 2, 20);
+
+        assertEquals("LINESTRING(3.0 3.0, 2.0 2.0, 1.0 1.0)", history.path(CAR, now - 60_000));
+        assertEquals("LINESTRING(2.0 2.0, 1.0 1.0)", history.path(CAR, now - 2000));
+        assertEquals(15.0, history.averageSpeed(CAR, now - 2000));
+    }
+
+    @Test
+    void keepsArrivalOrderAmongSamplesTakenAtTheSameTime() {
+        FeedHistory history = new FeedHistory(60_000, 10);
+        history.record(CAR, now - 1000, 1, 1, 0);
+        history.record(CAR, now - 2000, 2, 2, 0);
+        history.record(CAR, now - 2000, 3, 3, 0);
+
+        assertEquals("LINESTRING(2.0 2.0, 3.0 3.0, 1.0 1.0)", history.path(CAR, now - 60_000));
+    }
+
+    @Test
+    void overwritesTheOldestOnceFullAndDropsLateSamplesOlderThanThat() {
+        FeedHistory history = new FeedHistory(60_000, 2);
+        history.record(CAR, now - 3000, 3, 3, 0);
+        history.record(CAR, now - 2000, 2, 2, 0);
+        history.record(CAR, now - 1000, 1, 1, 0);
+
+        history.record(CAR, now - 4000, 4, 4, 0);
+
+        assertEquals("LINESTRING(2.0 2.0, 1.0 1.0)", history.path(CAR, now - 60_000));
+        assertEquals(2, history.stats().samples());
+    }
+
+    @Test
+    void neverAnswersWithSamplesOlderThanTheRetention() {
+        FeedHistory history = new FeedHistory(10_000, 10);
+        history.record(CAR, now - 20_000, 9, 9, 90);
+        history.record(CAR, now - 1000, 1, 1, 10);
+
+        assertEquals("POINT(1.0 1.0)", history.path(CAR, 0));
+        assertEquals(10.0, history.averageSpeed(CAR, 0));
+        assertEquals(0.0, history.distanceKm(CAR, 0));
+    }
+
+    @Test
+    void answersNothingWithoutSamplesInTheWindow() {
+        FeedHistory history = new FeedHistory(60_000, 10);
+        history.record(CAR, now - 5000, 1, 1, 10);
+
+        assertTrue(Double.isNaN(history.averageSpeed(CAR, now)));
+        assertTrue(Double.isNaN(history.distanceKm(CAR, now)));
+        assertNull(history.path(CAR, now));
+        assertTrue(Double.isNaN(history.averageSpeed("http://ex.org/unknown", 0)));
+    }
+
+    @Test
+    void measuresTheDistanceAlongThePath() {
+        FeedHistory history = new FeedHistory(60_000, 10);
+        history.record(CAR, now - 2000, 0, 0, 0);
+        history.record(CAR, now - 1000, 1, 0, 0);
+
+        // one degree of latitude
+        assertEquals(111.19, history.distanceKm(CAR, 0), 0.01);
+    }
+
+    @Test
+    void exposesTheHistoryAsSparqlFunctions() {
+        FeedHistory history = new FeedHistory(60_000, 10);
+        history.record(CAR, now - 2000, 51.5, -0.1, 40);
+        history.record(CAR, now - 1000, 51.6, -0.1, 60);
+        FeedHistoryFunctions.register(history);
+        SailRepository repository = new SailRepository(new MemoryStore());
+        try (RepositoryConnection connection = repository.getConnection()) {
+            String query = "PREFIX hist: <" + FeedHistoryFunctions.NAMESPACE + ">\n"
+                    + "SELECT ?speed ?none WHERE { BIND(hist:avgSpeed(<" + CAR + ">, 1) AS ?speed) "
+                    + "BIND(hist:avgSpeed(<http://ex.org/unknown>, 1) AS ?none) }";
+            try (TupleQueryResult result = connection.prepareTupleQuery(query).evaluate()) {
+                BindingSet row = result.next();
+                assertEquals(50.0, Double.parseDouble(row.getValue("speed").stringValue()));
+                assertFalse(row.hasBinding("none"));
+            }
+        } finally {
+            repository.shutDown();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package smartrics.iotics.samples.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GroupCommitWriterTest {
+
+    @Test
+    void flushWaitsForEverythingSubmittedBefore() {
+        List<Integer> committed = new CopyOnWriteArrayList<>();
+        GroupCommitWriter<Integer> writer = new GroupCommitWriter<>(5, 10, 100, committed::addAll);
+
+        for (int i = 0; i < 25; i++) {
+            writer.submit(i);
+        }
+        writer.flush();
+
+        assertEquals(25, committed.size());
+        assertEquals(0, committed.getFirst());
+        assertEquals(24, committed.getLast());
+        writer.shutdown();
+    }
+
+    @Test
+    void batchesAreNoLargerThanTheMaximum() {
+        List<Integer> sizes = new CopyOnWriteArrayList<>();
+        GroupCommitWriter<Integer> writer = new GroupCommitWriter<>(50, 4, 100, batch -> sizes.add(batch.size()));
+
+        for (int i = 0; i < 10; i++) {
+            writer.submit(i);
+        }
+        writer.flush();
+
+        assertTrue(sizes.stream().allMatch(size -> size <= 4), sizes::toString);
+        assertEquals(10, sizes.stream().mapToInt(Integer::intValue).sum());
+        writer.shutdown();
+    }
+
+    @Test
+    void submitBlocksWhileTheQueueIsFull() throws InterruptedException {
+        CountDownLatch committing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        GroupCommitWriter<Integer> writer = new GroupCommitWriter<>(1, 1, 1, batch -> {
+            committing.countDown();
+            await(release);
+        });
+        writer.submit(1);
+        assertTrue(committing.await(5, TimeUnit.SECONDS));
+        // the worker is stuck on 1; 2 fills the queue, 3 has to wait
+        writer.submit(2);
+        Thread blocked = Thread.ofPlatform().start(() -> writer.submit(3));
+
+        blocked.join(200);
+        assertTrue(blocked.isAlive());
+
+        release.countDown();
+        blocked.join(5000);
+        assertFalse(blocked.isAlive());
+        writer.shutdown();
+    }
+
+    @Test
+    void shutdownCommitsPendingWritesAndRefusesNewOnes() {
+        List<Integer> committed = new CopyOnWriteArrayList<>();
+        GroupCommitWriter<Integer> writer = new GroupCommitWriter<>(50, 100, 100, committed::addAll);
+        writer.submit(1);
+        writer.submit(2);
+
+        writer.shutdown();
+
+        assertEquals(List.of(1, 2), committed);
+        assertThrows(IllegalStateException.class, () -> writer.submit(3));
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertThrows(IllegalStateException.class, writer::flush));
+    }
+
+    @Test
+    void failedBatchDoesNotStopTheWriter() {
+        List<Integer> committed = new ArrayList<>();
+        GroupCommitWriter<Integer> writer = new GroupCommitWriter<>(1, 1, 100, batch -> {
+            if (batch.contains(1)) {
+                throw new IllegalArgumentException("bad write");
+            }
+            committed.addAll(batch);
+        });
+
+        writer.submit(1);
+        writer.flush();
+        writer.submit(2);
+        writer.flush();
+
+        assertEquals(List.of(2), committed);
+        assertEquals(1, writer.stats().failures());
+        writer.shutdown();
+    }
+
+    @Test
+    void flushFailsInsteadOfHangingWhenTheWriterDies() {
+        GroupCommitWriter<Integer> writer = new GroupCommitWriter<>(1, 1, 100, batch -> {
+            throw new AssertionError("fatal");
+        });
+
+        writer.submit(1);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            assertThrows(IllegalStateException.class, writer::flush);
+            assertThrows(IllegalStateException.class, () -> writer.submit(2));
+        });
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
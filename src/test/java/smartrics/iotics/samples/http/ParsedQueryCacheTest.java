@@ -0,0 +1,99 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ParsedQueryCacheTest {
+    private static final String Q1 = "SELECT * WHERE { ?s ?p ?o }";
+    private static final String Q2 = "ASK { ?s ?p ?o }";
+    private static final String Q3 = "SELECT ?s WHERE { ?s ?p 1 }";
+
+    @Test
+    void returnsTheCachedParseOnHit() {
+        ParsedQueryCache cache = new ParsedQueryCache(10, 1000, false);
+
+        ParsedQuery first = cache.get(Q1);
+
+        assertSame(first, cache.get(Q1));
+        assertEquals(1, cache.stats().hits());
+        assertEquals(1, cache.stats().misses());
+        assertEquals(1, cache.stats().size());
+    }
+
+    @Test
+    void sharesAnEntryBetweenReorderedOrRedeclaredPrefixes() {
+        ParsedQueryCache cache = new ParsedQueryCache(10, 1000, false);
+
+        ParsedQuery first = cache.get(QueryNormaliser.normalise(
+                "PREFIX a: <http://a.org/> PREFIX b: <http://b.org/> SELECT * WHERE { ?s a:p b:o }"));
+
+        assertSame(first, cache.get(QueryNormaliser.normalise(
+                "PREFIX b: <http://b.org/>\nPREFIX a: <http://a.org/>\nSELECT * WHERE { ?s a:p b:o }")));
+        assertSame(first, cache.get(QueryNormaliser.normalise(
+                "PREFIX a: <http://old.org/> PREFIX b: <http://b.org/> PREFIX a: <http://a.org/> SELECT * WHERE { ?s a:p b:o }")));
+        assertEquals(1, cache.stats().size());
+    }
+
+    @Test
+    void keepsQueriesWithDifferentBasesApart() {
+        ParsedQueryCache cache = new ParsedQueryCache(10, 1000, false);
+
+        ParsedQuery before = cache.get(QueryNormaliser.normalise(
+                "PREFIX a: <p/> BASE <http://x.org/> SELECT * WHERE { ?s a:p ?o }"));
+        ParsedQuery after = cache.get(QueryNormaliser.normalise(
+                "BASE <http://x.org/> PREFIX a: <p/> SELECT * WHERE { ?s a:p ?o }"));
+
+        assertNotSame(before, after);
+        assertEquals(2, cache.stats().size());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        ParsedQueryCache cache = new ParsedQueryCache(2, 1000, false);
+        ParsedQuery q1 = cache.get(Q1);
+        cache.get(Q2);
+        cache.get(Q1);
+
+        cache.get(Q3);
+
+        assertEquals(1, cache.stats().evictions());
+        assertSame(q1, cache.get(Q1));
+        assertEquals(2, cache.stats().size());
+    }
+
+    @Test
+    void bypassesLongQueries() {
+        ParsedQueryCache cache = new ParsedQueryCache(10, Q1.length() - 1, false);
+
+        assertNotSame(cache.get(Q1), cache.get(Q1));
+        assertEquals(2, cache.stats().bypassed());
+        assertEquals(0, cache.stats().size());
+    }
+
+    @Test
+    void bypassesEverythingWhenDisabled() {
+        ParsedQueryCache cache = new ParsedQueryCache(0, 1000, false);
+
+        cache.get(Q1);
+
+        assertEquals(1, cache.stats().bypassed());
+        assertEquals(0, cache.stats().misses());
+    }
+
+    @Test
+    void admitsOnSecondUse() {
+        ParsedQueryCache cache = new ParsedQueryCache(10, 1000, true);
+
+        ParsedQuery first = cache.get(Q1);
+        assertEquals(0, cache.stats().size());
+        ParsedQuery second = cache.get(Q1);
+
+        assertNotSame(first, second);
+        assertSame(second, cache.get(Q1));
+        assertEquals(1, cache.stats().hits());
+    }
+}
@@ -0,0 +1,250 @@
+package smartrics.iotics.samples.http;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class QueryCoalescerTest {
+    private static final String QUERY = "SELECT * WHERE { ?s ?p ?o }";
+    private static final String FORMATS = "application/sparql-results+json";
+    private static final CharSequence CONTENT_TYPE = HttpHeaders.CONTENT_TYPE;
+
+    @Test
+    void evaluatesEveryRequestWhenDisabled() {
+        QueryCoalescer coalescer = new QueryCoalescer(0);
+
+        assertNotNull(coalescer.lead(QUERY, FORMATS, 1, 0, new Client().context));
+        assertNotNull(coalescer.lead(QUERY, FORMATS, 1, 0, new Client().context));
+
+        assertEquals(2, coalescer.stats().evaluations());
+        assertEquals(0, coalescer.stats().inFlight());
+    }
+
+    @Test
+    void replaysWhatWasWrittenToALateSubscriberThenSharesTheRest() throws IOException {
+        QueryCoalescer coalescer = new QueryCoalescer(1024);
+        Client leader = new Client();
+        Client late = new Client();
+        QueryCoalescer.Flight flight = coalescer.lead(QUERY, FORMATS, 1, 0, leader.context);
+        flight.putHeader(CONTENT_TYPE, FORMATS);
+        flight.output().write(bytes("abc"));
+
+        assertNull(coalescer.lead(QUERY, FORMATS, 1, 0, late.context));
+        flight.output().write(bytes("def"));
+        flight.complete(null);
+
+        assertEquals("abcdef", leader.body());
+        assertEquals("abcdef", late.body());
+        verify(late.response).putHeader(CONTENT_TYPE, (CharSequence) FORMATS);
+        assertTrue(leader.ended.get());
+        assertTrue(late.ended.get());
+        assertEquals(6, flight.bytesWritten());
+        assertEquals(1, coalescer.stats().evaluations());
+        assertEquals(1, coalescer.stats().joined());
+        assertEquals(0.5, coalescer.stats().ratio());
+    }
+
+    @Test
+    void joinsWithoutWaitingForASlowSubscriber() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer(1024 * 1024);
+        Client slow = new Client();
+        when(slow.response.writeQueueFull()).thenReturn(true);
+        QueryCoalescer.Flight flight = coalescer.lead(QUERY, FORMATS, 1, 0, slow.context);
+        CountDownLatch writing = new CountDownLatch(1);
+        Thread evaluation = Thread.ofPlatform().start(() -> {
+            try {
+                writing.countDown();
+                // a full chunk: stuck until the slow client drains or goes
+                flight.output().write(new byte[ResponseOutputStream.DEFAULT_CHUNK_SIZE]);
+            } catch (IOException e) {
+                // the slow client went
+            }
+        });
+        writing.await();
+        Thread.sleep(200);
+        Client late = new Client();
+
+        ExecutorService joiner = Executors.newSingleThreadExecutor();
+        try {
+            java.util.concurrent.Future<QueryCoalescer.Flight> joined = joiner.submit(() -> coalescer.lead(QUERY, FORMATS, 1, 0, late.context));
+
+            assertNull(joined.get(2, TimeUnit.SECONDS));
+            assertEquals(ResponseOutputStream.DEFAULT_CHUNK_SIZE, late.body().length());
+        } finally {
+            slow.disconnect();
+            evaluation.join();
+            joiner.shutdown();
+        }
+    }
+
+    @Test
+    void coalescesOnlyTheSameQueryFormatsEpochAndTimeLimit() {
+        QueryCoalescer coalescer = new QueryCoalescer(1024);
+        coalescer.lead(QUERY, FORMATS, 1, 0, new Client().context);
+
+        assertNotNull(coalescer.lead(QUERY + " LIMIT 1", FORMATS, 1, 0, new Client().context));
+        assertNotNull(coalescer.lead(QUERY, "text/csv", 1, 0, new Client().context));
+        assertNotNull(coalescer.lead(QUERY, FORMATS, 2, 0, new Client().context));
+        assertNotNull(coalescer.lead(QUERY, FORMATS, 1, 5, new Client().context));
+        assertNull(coalescer.lead(QUERY, FORMATS, 1, 0, new Client().context));
+    }
+
+    @Test
+    void takesNoSubscriberOnceTheOutputOutgrowsTheReplay() throws IOException {
+        QueryCoalescer coalescer = new QueryCoalescer(4);
+        QueryCoalescer.Flight flight = coalescer.lead(QUERY, FORMATS, 1, 0, new Client().context);
+
+        flight.output().write(bytes("abcde"));
+
+        QueryCoalescer.Flight next = coalescer.lead(QUERY, FORMATS, 1, 0, new Client().context);
+        assertNotNull(next);
+        assertNotSame(flight, next);
+    }
+
+    @Test
+    void takesNoSubscriberOnceComplete() {
+        QueryCoalescer coalescer = new QueryCoalescer(1024);
+        QueryCoalescer.Flight flight = coalescer.lead(QUERY, FORMATS, 1, 0, new Client().context);
+
+        flight.complete(null);
+
+        assertNotNull(coalescer.lead(QUERY, FORMATS, 1, 0, new Client().context));
+        assertEquals(0, coalescer.stats().joined());
+    }
+
+    @Test
+    void isAbandonedWhenTheLastSubscriberHasGone() {
+        QueryCoalescer coalescer = new QueryCoalescer(1024);
+        Client leader = new Client();
+        Client late = new Client();
+        QueryCoalescer.Flight flight = coalescer.lead(QUERY, FORMATS, 1, 0, leader.context);
+        coalescer.lead(QUERY, FORMATS, 1, 0, late.context);
+        AtomicBoolean abandoned = new AtomicBoolean();
+        flight.onAbandoned(() -> abandoned.set(true));
+
+        leader.disconnect();
+        assertFalse(abandoned.get());
+        late.disconnect();
+
+        assertTrue(abandoned.get());
+        // too late to join: the evaluation is being cancelled
+        assertNotSame(flight, coalescer.lead(QUERY, FORMATS, 1, 0, new Client().context));
+    }
+
+    @Test
+    void keepsWritingToTheSubscribersThatAreLeft() throws IOException {
+        QueryCoalescer coalescer = new QueryCoalescer(1024);
+        Client leader = new Client();
+        Client late = new Client();
+        QueryCoalescer.Flight flight = coalescer.lead(QUERY, FORMATS, 1, 0, leader.context);
+        coalescer.lead(QUERY, FORMATS, 1, 0, late.context);
+
+        leader.disconnect();
+        flight.output().write(bytes("abc"));
+        flight.complete(null);
+
+        assertEquals("abc", late.body());
+        assertEquals("", leader.body());
+        assertFalse(leader.ended.get());
+    }
+
+    @Test
+    void flagsATruncatedResultInAHeaderOrOnceStartedInATrailer() {
+        QueryCoalescer coalescer = new QueryCoalescer(1024);
+        Client leader = new Client();
+        Client late = new Client();
+        QueryCoalescer.Flight flight = coalescer.lead(QUERY, FORMATS, 1, 0, leader.context);
+        coalescer.lead(QUERY, FORMATS, 1, 0, late.context);
+        when(late.response.headWritten()).thenReturn(true);
+
+        flight.complete("rows");
+
+        verify(leader.response).putHeader(QueryLimits.TRUNCATED_HEADER, "rows");
+        verify(leader.response, never()).putTrailer(QueryLimits.TRUNCATED_HEADER, "rows");
+        verify(late.response).putTrailer(QueryLimits.TRUNCATED_HEADER, "rows");
+    }
+
+    @Test
+    void failsTheResponsesThatHaveNotStarted() {
+        QueryCoalescer coalescer = new QueryCoalescer(1024);
+        Client leader = new Client();
+        Client late = new Client();
+        QueryCoalescer.Flight flight = coalescer.lead(QUERY, FORMATS, 1, 0, leader.context);
+        coalescer.lead(QUERY, FORMATS, 1, 0, late.context);
+        when(late.response.headWritten()).thenReturn(true);
+
+        flight.fail(503, "busy");
+
+        verify(leader.response).setStatusCode(503);
+        verify(late.response).reset();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class Client {
+        final RoutingContext context = mock(RoutingContext.class);
+        final HttpServerResponse response = mock(HttpServerResponse.class);
+        final StringBuilder written = new StringBuilder();
+        final AtomicBoolean ended = new AtomicBoolean();
+        final AtomicBoolean closed = new AtomicBoolean();
+        final List<Handler<AsyncResult<Void>>> endHandlers = new ArrayList<>();
+
+        Client() {
+            when(context.response()).thenReturn(response);
+            when(context.addEndHandler(any())).thenAnswer(invocation -> {
+                endHandlers.add(invocation.getArgument(0));
+                return endHandlers.size();
+            });
+            when(response.closed()).thenAnswer(invocation -> closed.get());
+            when(response.headers()).thenReturn(MultiMap.caseInsensitiveMultiMap());
+            when(response.setStatusCode(any(Integer.class))).thenReturn(response);
+            when(response.write(any(Buffer.class))).thenAnswer(invocation -> {
+                written.append(invocation.getArgument(0, Buffer.class).toString(StandardCharsets.UTF_8));
+                return Future.succeededFuture();
+            });
+            when(response.end()).thenAnswer(invocation -> {
+                ended.set(true);
+                return Future.succeededFuture();
+            });
+        }
+
+        String body() {
+            return written.toString();
+        }
+
+        void disconnect() {
+            closed.set(true);
+            endHandlers.forEach(handler -> handler.handle(Future.failedFuture("connection closed")));
+        }
+    }
+}
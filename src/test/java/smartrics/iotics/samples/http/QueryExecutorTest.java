@@ -0,0 +1,91 @@
+package smartrics.iotics.samples.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueryExecutorTest {
+
+    @Test
+    void platformPoolRejectsBeyondPoolSizeAndQueue() throws InterruptedException {
+        rejectsBeyondPoolSizeAndQueue(false);
+    }
+
+    @Test
+    void virtualThreadsRejectBeyondPoolSizeAndQueue() throws InterruptedException {
+        rejectsBeyondPoolSizeAndQueue(true);
+    }
+
+    @Test
+    void virtualThreadsRunNoMoreThanPoolSizeAtOnce() throws InterruptedException {
+        QueryExecutor executor = new QueryExecutor("test", 2, 20, true);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(10);
+
+        for (int i = 0; i < 10; i++) {
+            executor.submit(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(20);
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+        executor.shutdown();
+    }
+
+    private static void rejectsBeyondPoolSizeAndQueue(boolean virtualThreads) throws InterruptedException {
+        QueryExecutor executor = new QueryExecutor("test", 2, 1, virtualThreads);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        Runnable task = () -> {
+            started.countDown();
+            await(release);
+            done.countDown();
+        };
+        for (int i = 0; i < 3; i++) {
+            executor.submit(task);
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertThrows(RejectedExecutionException.class, () -> executor.submit(task));
+        QueryExecutor.Stats busy = executor.stats();
+        assertEquals(2, busy.active());
+        assertEquals(1, busy.queued());
+        assertEquals(1, busy.rejected());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // room again: would throw otherwise
+        executor.submit(() -> {
+        });
+        executor.shutdown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
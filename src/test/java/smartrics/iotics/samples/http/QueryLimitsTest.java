@@ -0,0 +1,194 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.model.util.Values;
+import org.eclipse.rdf4j.query.AbstractTupleQueryResultHandler;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryInterruptedException;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.query.impl.IteratingTupleQueryResult;
+import org.eclipse.rdf4j.query.impl.MapBindingSet;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueryLimitsTest {
+
+    @Test
+    void letsARequestAskForLessTimeButNeverMore() {
+        QueryLimits limits = new QueryLimits(10, 0, 0);
+
+        assertEquals(10, limits.executionSeconds(0));
+        assertEquals(5, limits.executionSeconds(5));
+        assertEquals(10, limits.executionSeconds(60));
+        assertEquals(60, new QueryLimits(0, 0, 0).executionSeconds(60));
+        assertEquals(0, new QueryLimits(0, 0, 0).executionSeconds(-1));
+    }
+
+    @Test
+    void copiesACompleteResult() {
+        Collector collector = new Collector();
+        QueryLimits.Guard guard = new QueryLimits(0, 10, 0).guard(() -> 0);
+
+        guard.report(result(3), collector);
+
+        assertEquals(3, collector.rows.size());
+        assertTrue(collector.ended);
+        assertEquals(3, guard.rows());
+        assertNull(guard.truncation());
+    }
+
+    @Test
+    void cutsTheResultShortAtTheRowLimit() {
+        QueryLimits limits = new QueryLimits(0, 2, 0);
+        Collector collector = new Collector();
+        QueryLimits.Guard guard = limits.guard(() -> 0);
+
+        guard.report(result(5), collector);
+
+        assertEquals(2, collector.rows.size());
+        assertTrue(collector.ended);
+        assertEquals("rows", guard.truncation());
+        assertEquals(1, limits.stats().truncatedOnRows());
+    }
+
+    @Test
+    void cutsTheResultShortAtTheByteLimit() {
+        QueryLimits limits = new QueryLimits(0, 0, 100);
+        Collector collector = new Collector();
+        // as if every row took 60 bytes
+        QueryLimits.Guard guard = limits.guard(() -> collector.rows.size() * 60L);
+
+        guard.report(result(5), collector);
+
+        assertEquals(2, collector.rows.size());
+        assertTrue(collector.ended);
+        assertEquals("bytes", guard.truncation());
+        assertEquals(1, limits.stats().truncatedOnBytes());
+    }
+
+    @Test
+    void sendsWhatItHasWhenTimingOutAfterTheFirstRow() {
+        QueryLimits limits = new QueryLimits(1, 0, 0);
+        Collector collector = new Collector();
+        QueryLimits.Guard guard = limits.guard(() -> 0);
+
+        guard.report(timingOutAfter(1), collector);
+
+        assertEquals(1, collector.rows.size());
+        assertTrue(collector.ended);
+        assertEquals("timeout", guard.truncation());
+        assertEquals(1, limits.stats().timeouts());
+        assertEquals(1, limits.stats().truncatedOnTimeout());
+    }
+
+    @Test
+    void leavesATimeoutBeforeTheFirstRowToTheCaller() {
+        QueryLimits limits = new QueryLimits(1, 0, 0);
+
+        assertThrows(QueryInterruptedException.class, () -> limits.guard(() -> 0).report(timingOutAfter(0), new Collector()));
+        assertEquals(0, limits.stats().truncatedOnTimeout());
+    }
+
+    @Test
+    void stopsAndClosesTheResultWhenCancelled() {
+        QueryLimits limits = new QueryLimits(0, 0, 0);
+        QueryLimits.Guard guard = limits.guard(() -> 0);
+        AtomicBoolean closed = new AtomicBoolean();
+        TupleQueryResult result = new IteratingTupleQueryResult(List.of("n"), rows(5)) {
+            @Override
+            protected void handleClose() {
+                closed.set(true);
+                super.handleClose();
+            }
+        };
+        Collector collector = new Collector() {
+            @Override
+            public void handleSolution(BindingSet bindingSet) {
+                super.handleSolution(bindingSet);
+                guard.cancel();
+            }
+        };
+
+        guard.report(result, collector);
+
+        assertEquals(1, collector.rows.size());
+        assertFalse(collector.ended);
+        assertTrue(closed.get());
+        assertTrue(guard.cancelled());
+        assertEquals(1, limits.stats().cancellations());
+    }
+
+    @Test
+    void startsNothingOnceCancelled() {
+        QueryLimits.Guard guard = new QueryLimits(0, 0, 0).guard(() -> 0);
+        Collector collector = new Collector();
+
+        guard.cancel();
+        guard.report(result(3), collector);
+
+        assertFalse(collector.started);
+        assertTrue(collector.rows.isEmpty());
+    }
+
+    private static TupleQueryResult result(int rows) {
+        return new IteratingTupleQueryResult(List.of("n"), rows(rows));
+    }
+
+    private static TupleQueryResult timingOutAfter(int rows) {
+        Iterator<BindingSet> some = rows(rows);
+        return new IteratingTupleQueryResult(List.of("n"), new Iterator<BindingSet>() {
+            @Override
+            public boolean hasNext() {
+                if (!some.hasNext()) {
+                    throw new QueryInterruptedException("timed out");
+                }
+                return true;
+            }
+
+            @Override
+            public BindingSet next() {
+                return some.next();
+            }
+        });
+    }
+
+    private static Iterator<BindingSet> rows(int count) {
+        List<BindingSet> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            MapBindingSet row = new MapBindingSet();
+            row.addBinding("n", Values.literal(i));
+            rows.add(row);
+        }
+        return rows.iterator();
+    }
+
+    private static class Collector extends AbstractTupleQueryResultHandler {
+        final List<BindingSet> rows = new ArrayList<>();
+        boolean started;
+        boolean ended;
+
+        @Override
+        public void startQueryResult(List<String> bindingNames) {
+            started = true;
+        }
+
+        @Override
+        public void handleSolution(BindingSet bindingSet) {
+            rows.add(bindingSet);
+        }
+
+        @Override
+        public void endQueryResult() {
+            ended = true;
+        }
+    }
+}
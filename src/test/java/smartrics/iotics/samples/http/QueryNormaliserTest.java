@@ -0,0 +1,92 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class QueryNormaliserTest {
+
+    @Test
+    void collapsesWhitespaceAndDropsComments() {
+        String query = "  SELECT ?s # all subjects\n\tWHERE {\n   ?s   ?p ?o # any\r\n }  ";
+
+        assertEquals("SELECT ?s WHERE { ?s ?p ?o }", QueryNormaliser.normalise(query));
+    }
+
+    @Test
+    void leavesLiteralsAndIrisAlone() {
+        String query = "SELECT * WHERE { ?s <http://ex.org/a#b>  \"two  spaces # not a comment\" , '''long\n  form''' }";
+
+        assertEquals("SELECT * WHERE { ?s <http://ex.org/a#b> \"two  spaces # not a comment\" , '''long\n  form''' }",
+                QueryNormaliser.normalise(query));
+    }
+
+    @Test
+    void keepsEscapedQuotesInsideLiterals() {
+        String query = "ASK { ?s ?p \"say \\\"hi\\\"   there\" }";
+
+        assertEquals(query, QueryNormaliser.normalise(query));
+    }
+
+    @Test
+    void tellsComparisonFromIri() {
+        assertEquals("SELECT * WHERE { ?s ?p ?a FILTER(?a < 3 && ?a > 1) }",
+                QueryNormaliser.normalise("SELECT * WHERE { ?s ?p ?a FILTER(?a   <   3 && ?a > 1) }"));
+    }
+
+    @Test
+    void keepsPrologueInOrder() {
+        // the second BASE resolves against the first, and the prefix against the second
+        String query = "BASE <http://a.org/x/>\nPREFIX ex: <y/>\nBASE <z/>\nPREFIX ex2: <w/>\nSELECT * WHERE { ?s ex:p ex2:o }";
+
+        String normalised = QueryNormaliser.normalise(query);
+
+        assertEquals("BASE <http://a.org/x/> PREFIX ex: <y/> BASE <z/> PREFIX ex2: <w/> SELECT * WHERE { ?s ex:p ex2:o }", normalised);
+        assertEquals(parse(query).getTupleExpr(), parse(normalised).getTupleExpr());
+    }
+
+    @Test
+    void sortsPrefixesAndKeepsTheLastDeclarationOfEach() {
+        String query = "prefix ex: <http://old.org/> PREFIX b: <http://b.org/> PREFIX : <http://d.org/> PREFIX ex: <http://ex.org/>\n"
+                + "SELECT * WHERE { ?s ex:p b:o , :d }";
+
+        String normalised = QueryNormaliser.normalise(query);
+
+        assertEquals("PREFIX : <http://d.org/> PREFIX b: <http://b.org/> PREFIX ex: <http://ex.org/> SELECT * WHERE { ?s ex:p b:o , :d }",
+                normalised);
+        assertEquals(parse(query.replace("prefix ex: <http://old.org/> ", "")).getTupleExpr(), parse(normalised).getTupleExpr());
+    }
+
+    @Test
+    void neverMovesAPrefixAcrossABase() {
+        // ex is relative: resolved against the BASE in effect where it is declared
+        String query = "PREFIX z: <http://z.org/> PREFIX ex: <y/> BASE <http://a.org/> PREFIX ex: <w/> PREFIX a: <v/> SELECT * WHERE { ?s ex:p a:o , z:o }";
+
+        String normalised = QueryNormaliser.normalise(query);
+
+        assertEquals("PREFIX z: <http://z.org/> BASE <http://a.org/> PREFIX a: <v/> PREFIX ex: <w/> SELECT * WHERE { ?s ex:p a:o , z:o }",
+                normalised);
+        assertEquals(parse(query.replace("PREFIX ex: <y/> ", "")).getTupleExpr(), parse(normalised).getTupleExpr());
+    }
+
+    @Test
+    void keepsUnicodePrefixNames() {
+        String query = "PREFIX é: <http://ex.org/>  SELECT * WHERE { ?s é:p ?o }";
+
+        assertEquals("PREFIX é: <http://ex.org/> SELECT * WHERE { ?s é:p ?o }", QueryNormaliser.normalise(query));
+    }
+
+    @Test
+    void isIdempotent() {
+        String once = QueryNormaliser.normalise("PREFIX ex: <http://ex.org/>\n# comment\nSELECT  ?s {\n ?s ex:p \"a  b\" }");
+
+        assertEquals(once, QueryNormaliser.normalise(once));
+    }
+
+    private static ParsedQuery parse(String query) {
+        return QueryParserUtil.parseQuery(QueryLanguage.SPARQL, query, null);
+    }
+}
@@ -0,0 +1,122 @@
+package smartrics.iotics.samples.http;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ResponseOutputStreamTest {
+
+    @Test
+    void sendsBoundedChunksAndTheRemainderOnClose() throws IOException {
+        Client client = new Client();
+        ResponseOutputStream out = new ResponseOutputStream(client.response, 4);
+
+        out.write(bytes("abcdefghij"));
+        assertEquals(List.of("abcd", "efgh"), client.chunks());
+
+        out.write('k');
+        out.flush();
+        assertEquals(2, client.chunks().size());
+
+        out.close();
+        assertEquals(List.of("abcd", "efgh", "ijk"), client.chunks());
+        assertEquals(11, out.bytesWritten());
+    }
+
+    @Test
+    void closeSendsNothingWhenEmptyAndRejectsFurtherWrites() throws IOException {
+        Client client = new Client();
+        ResponseOutputStream out = new ResponseOutputStream(client.response, 4);
+
+        out.close();
+        out.close();
+
+        assertTrue(client.chunks().isEmpty());
+        assertThrows(IOException.class, () -> out.write('a'));
+    }
+
+    @Test
+    void waitsForTheDrainHandlerWhileTheWriteQueueIsFull() throws Exception {
+        Client client = new Client();
+        AtomicBoolean full = new AtomicBoolean(true);
+        AtomicReference<Handler<Void>> drain = new AtomicReference<>();
+        when(client.response.writeQueueFull()).thenAnswer(i -> full.get());
+        when(client.response.drainHandler(any())).thenAnswer(i -> {
+            drain.set(i.getArgument(0));
+            return client.response;
+        });
+        ResponseOutputStream out = new ResponseOutputStream(client.response, 4);
+
+        CompletableFuture<Void> writing = CompletableFuture.runAsync(() -> {
+            try {
+                out.write(bytes("abcd"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while (drain.get() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertFalse(writing.isDone());
+        assertTrue(client.chunks().isEmpty());
+
+        full.set(false);
+        drain.get().handle(null);
+        writing.get(5, TimeUnit.SECONDS);
+
+        assertEquals(List.of("abcd"), client.chunks());
+    }
+
+    @Test
+    void failsWhenTheClientGoesAwayWhileWaitingToDrain() {
+        Client client = new Client();
+        when(client.response.writeQueueFull()).thenReturn(true);
+        when(client.response.closed()).thenReturn(true);
+        ResponseOutputStream out = new ResponseOutputStream(client.response, 4);
+
+        IOException e = assertThrows(IOException.class, () -> out.write(bytes("abcd")));
+
+        assertEquals("client closed connection", e.getMessage());
+        assertTrue(client.chunks().isEmpty());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Client {
+        final HttpServerResponse response = mock(HttpServerResponse.class);
+        final List<String> written = new CopyOnWriteArrayList<>();
+
+        Client() {
+            when(response.write(any(Buffer.class))).thenAnswer(i -> {
+                written.add(i.<Buffer>getArgument(0).toString(StandardCharsets.UTF_8));
+                return null;
+            });
+        }
+
+        List<String> chunks() {
+            return written;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package smartrics.iotics.samples.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultCacheTest {
+    private static final String JSON = "application/sparql-results+json";
+
+    @Test
+    void answersAtTheSameEpochOnly() {
+        ResultCache cache = new ResultCache(1000, 100, 0);
+        cache.put("q", JSON, 3, JSON, bytes("result"));
+
+        Optional<ResultCache.Entry> hit = cache.get("q", JSON, 3, 0);
+
+        assertTrue(hit.isPresent());
+        assertArrayEquals(bytes("result"), hit.get().body());
+        assertFalse(cache.get("q", JSON, 4, 0).isPresent());
+        assertFalse(cache.get("q", "text/csv", 3, 0).isPresent());
+        assertEquals(1, cache.stats().hits());
+        assertEquals(2, cache.stats().misses());
+    }
+
+    @Test
+    void answersStaleWithinTheSmallerOfRequestedAndConfiguredEpochs() {
+        ResultCache cache = new ResultCache(1000, 100, 2);
+        cache.put("q", JSON, 3, JSON, bytes("result"));
+
+        assertTrue(cache.get("q", JSON, 5, 10).isPresent());
+        assertFalse(cache.get("q", JSON, 6, 10).isPresent());
+        assertFalse(cache.get("q", JSON, 4, 0).isPresent());
+        assertEquals(1, cache.stats().staleHits());
+    }
+
+    @Test
+    void neverReplacesANewerEntry() {
+        ResultCache cache = new ResultCache(1000, 100, 5);
+        cache.put("q", JSON, 5, JSON, bytes("new"));
+
+        cache.put("q", JSON, 4, JSON, bytes("old"));
+
+        assertArrayEquals(bytes("new"), cache.get("q", JSON, 5, 0).orElseThrow().body());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedBeyondTheByteBudget() {
+        ResultCache cache = new ResultCache(10, 10, 0);
+        cache.put("a", JSON, 1, JSON, bytes("aaaa"));
+        cache.put("b", JSON, 1, JSON, bytes("bbbb"));
+        cache.get("a", JSON, 1, 0);
+
+        cache.put("c", JSON, 1, JSON, bytes("cccc"));
+
+        assertTrue(cache.get("a", JSON, 1, 0).isPresent());
+        assertFalse(cache.get("b", JSON, 1, 0).isPresent());
+        assertTrue(cache.get("c", JSON, 1, 0).isPresent());
+        assertEquals(8, cache.stats().bytes());
+        assertEquals(1, cache.stats().evictions());
+    }
+
+    @Test
+    void skipsBodiesOverTheEntryLimit() {
+        ResultCache cache = new ResultCache(1000, 3, 0);
+
+        cache.put("q", JSON, 1, JSON, bytes("four"));
+
+        assertEquals(0, cache.stats().entries());
+    }
+
+    @Test
+    void recorderCopiesWhatIsStreamed() throws IOException {
+        ResultCache cache = new ResultCache(1000, 100, 0);
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        ResultCache.Recorder recorder = cache.recorder("q", JSON, 1);
+
+        try (OutputStream out = recorder.wrap(client)) {
+            out.write(bytes("res"));
+            out.write('u');
+            out.write(bytes("lt"));
+        }
+        recorder.complete(JSON);
+
+        assertEquals("result", client.toString(StandardCharsets.UTF_8));
+        ResultCache.Entry entry = cache.get("q", JSON, 1, 0).orElseThrow();
+        assertArrayEquals(bytes("result"), entry.body());
+        assertEquals(JSON, entry.contentType());
+    }
+
+    @Test
+    void recorderGivesUpPastTheEntryLimit() throws IOException {
+        ResultCache cache = new ResultCache(1000, 4, 0);
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        ResultCache.Recorder recorder = cache.recorder("q", JSON, 1);
+
+        try (OutputStream out = recorder.wrap(client)) {
+            out.write(bytes("result"));
+        }
+        recorder.complete(JSON);
+
+        assertEquals("result", client.toString(StandardCharsets.UTF_8));
+        assertEquals(0, cache.stats().entries());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
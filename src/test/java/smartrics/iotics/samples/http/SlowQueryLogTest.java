@@ -0,0 +1,58 @@
+package smartrics.iotics.samples.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SlowQueryLogTest {
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void onlyQueriesOverTheThresholdAreSlow() {
+        SlowQueryLog log = new SlowQueryLog(100, 10);
+
+        assertFalse(log.isSlow(99 * MILLIS));
+        assertTrue(log.isSlow(100 * MILLIS));
+    }
+
+    @Test
+    void nothingIsSlowWhenDisabled() {
+        SlowQueryLog log = new SlowQueryLog(0, 0);
+
+        assertFalse(log.enabled());
+        assertFalse(log.isSlow(Long.MAX_VALUE));
+        assertTrue(log.entries().isEmpty());
+    }
+
+    @Test
+    void keepsTheLastEntriesNewestFirst() {
+        SlowQueryLog log = new SlowQueryLog(0, 3);
+
+        for (int i = 1; i <= 5; i++) {
+            log.record("q" + i, "select", "application/sparql-results+json", i * MILLIS, i, "plan " + i);
+        }
+
+        List<SlowQueryLog.Entry> entries = log.entries();
+        assertEquals(List.of("q5", "q4", "q3"), entries.stream().map(SlowQueryLog.Entry::query).toList());
+        assertEquals(5, entries.getFirst().millis());
+        assertEquals(5, entries.getFirst().rows());
+        assertEquals("plan 5", entries.getFirst().plan());
+        assertEquals(5, log.stats().recorded());
+        assertEquals(3, log.stats().capacity());
+    }
+
+    @Test
+    void returnsOnlyTheEntriesRecordedSoFar() {
+        SlowQueryLog log = new SlowQueryLog(0, 3);
+
+        log.record("q1", "ask", null, MILLIS, 1, "plan");
+
+        assertEquals(1, log.entries().size());
+        assertEquals("q1", log.entries().getFirst().query());
+    }
+}
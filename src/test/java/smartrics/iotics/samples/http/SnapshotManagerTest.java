@@ -0,0 +1,137 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.util.Values;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotManagerTest {
+    private static final IRI CAR = Values.iri("http://ex.org/car");
+    private static final IRI SPEED = Values.iri("http://ex.org/speed");
+
+    private Path dir;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("snapshots");
+        file = dir.resolve("store.brf.gz");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void restoresWhatWasSnapshotted() throws IOException {
+        SailRepository source = repository(100);
+        new SnapshotManager(source, file, 0).snapshot();
+        SailRepository target = repository(0);
+
+        SnapshotManager restoring = new SnapshotManager(target, file, 0);
+        restoring.restore();
+
+        assertEquals(100, size(target));
+        assertEquals(100, restoring.stats().restoredStatements());
+        assertNull(restoring.stats().restoreFailure());
+        source.shutDown();
+        target.shutDown();
+    }
+
+    @Test
+    void leavesAStoreWithDataAlone() throws IOException {
+        new SnapshotManager(repository(100), file, 0).snapshot();
+        SailRepository target = repository(1);
+
+        new SnapshotManager(target, file, 0).restore();
+
+        assertEquals(1, size(target));
+        target.shutDown();
+    }
+
+    @Test
+    void startsEmptyFromATruncatedSnapshot() throws IOException {
+        new SnapshotManager(repository(1000), file, 0).snapshot();
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+        SailRepository target = repository(0);
+
+        SnapshotManager restoring = new SnapshotManager(target, file, 0);
+        restoring.restore();
+
+        assertEquals(0, size(target));
+        assertNotNull(restoring.stats().restoreFailure());
+        target.shutDown();
+    }
+
+    @Test
+    void startsEmptyFromASnapshotThatIsNotRdf() throws IOException {
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            out.write("not a binary RDF file".getBytes(StandardCharsets.UTF_8));
+        }
+        SailRepository target = repository(0);
+
+        SnapshotManager restoring = new SnapshotManager(target, file, 0);
+        restoring.restore();
+
+        assertEquals(0, size(target));
+        assertNotNull(restoring.stats().restoreFailure());
+        target.shutDown();
+    }
+
+    @Test
+    void writesALastSnapshotOnShutdown() {
+        SailRepository source = repository(10);
+        SnapshotManager snapshots = new SnapshotManager(source, file, 3600);
+        snapshots.start();
+
+        snapshots.shutdown();
+
+        assertTrue(Files.exists(file));
+        assertEquals(1, snapshots.stats().snapshots());
+        try (Stream<Path> paths = Files.list(dir)) {
+            assertEquals(1, paths.count(), "temporary files left behind");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        source.shutDown();
+    }
+
+    private static SailRepository repository(int statements) {
+        SailRepository repository = new SailRepository(new MemoryStore());
+        try (RepositoryConnection conn = repository.getConnection()) {
+            for (int i = 0; i < statements; i++) {
+                conn.add(Values.iri(CAR + "/" + i), SPEED, Values.literal(i));
+            }
+        }
+        return repository;
+    }
+
+    private static long size(SailRepository repository) {
+        try (RepositoryConnection conn = repository.getConnection()) {
+            return conn.size();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.util.Values;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpatialIndexTest {
+    private static final IRI AS_WKT = Values.iri("http://www.opengis.net/ont/geosparql#asWKT");
+    private static final IRI WKT_LITERAL = Values.iri("http://www.opengis.net/ont/geosparql#wktLiteral");
+    private static final IRI LONDON = Values.iri("http://ex.org/london");
+    private static final IRI READING = Values.iri("http://ex.org/reading");
+
+    private final SpatialIndex index = new SpatialIndex(0.01);
+
+    @Test
+    void findsThePointsWithinTheRadius() {
+        index.apply(added(point(LONDON, 51.5074, -0.1278), point(READING, 51.4543, -0.9781)));
+
+        assertEquals(Set.of(LONDON), Set.copyOf(index.nearby(51.51, -0.12, 5)));
+        assertEquals(Set.of(LONDON, READING), Set.copyOf(index.nearby(51.5, -0.5, 50)));
+        assertTrue(index.nearby(48.8566, 2.3522, 50).isEmpty());
+    }
+
+    @Test
+    void movesAGeometryToItsLatestPoint() {
+        index.apply(added(point(LONDON, 51.5074, -0.1278)));
+
+        index.apply(new ChangeSet(2, List.of(point(LONDON, 51.4543, -0.9781)), List.of(point(LONDON, 51.5074, -0.1278)),
+                Set.of(AS_WKT)));
+
+        assertTrue(index.nearby(51.5074, -0.1278, 5).isEmpty());
+        assertEquals(Set.of(LONDON), Set.copyOf(index.nearby(51.4543, -0.9781, 5)));
+    }
+
+    @Test
+    void dropsRemovedGeometriesAndOnesThatAreNotPoints() {
+        index.apply(added(point(LONDON, 51.5074, -0.1278), point(READING, 51.4543, -0.9781)));
+
+        index.apply(new ChangeSet(2, List.of(), List.of(point(LONDON, 51.5074, -0.1278)), Set.of(AS_WKT)));
+        index.apply(added(statement(READING, "LINESTRING(-0.97 51.45, -0.98 51.46)")));
+
+        assertTrue(index.nearby(51.5, -0.5, 100).isEmpty());
+    }
+
+    @Test
+    void readsPointsAfterACoordinateReferenceSystem() {
+        index.apply(added(statement(LONDON, "<http://www.opengis.net/def/crs/OGC/1.3/CRS84> POINT(-0.1278 51.5074)")));
+
+        assertEquals(Set.of(LONDON), Set.copyOf(index.nearby(51.5074, -0.1278, 1)));
+    }
+
+    @Test
+    void answersTheMagicPredicateWithLatLonAndRadius() {
+        index.apply(added(point(LONDON, 51.5074, -0.1278)));
+
+        List<Value> arguments = List.of(Values.literal(51.5074), Values.literal(-0.1278), Values.literal(1));
+
+        assertEquals(Set.of(LONDON), Set.copyOf(index.subjects(arguments)));
+        assertThrows(IllegalArgumentException.class, () -> index.subjects(List.of(Values.literal(51.5), Values.literal(0.1))));
+        assertThrows(IllegalArgumentException.class,
+                () -> index.subjects(List.of(Values.literal("north"), Values.literal(0.1), Values.literal(1))));
+    }
+
+    private static ChangeSet added(Statement... statements) {
+        return new ChangeSet(1, List.of(statements), List.of(), Set.of(AS_WKT));
+    }
+
+    private static Statement point(IRI geometry, double lat, double lon) {
+        return statement(geometry, "POINT(" + lon + " " + lat + ")");
+    }
+
+    private static Statement statement(IRI geometry, String wkt) {
+        return Values.getValueFactory().createStatement(geometry, AS_WKT, Values.literal(wkt, WKT_LITERAL));
+    }
+}
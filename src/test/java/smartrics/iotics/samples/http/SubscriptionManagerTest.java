@@ -0,0 +1,141 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.model.util.Values;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SubscriptionManagerTest {
+    private static final IRI CAR = Values.iri("http://ex.org/car");
+    private static final IRI SPEED = Values.iri("http://ex.org/speed");
+    private static final IRI NAME = Values.iri("http://ex.org/name");
+    private static final String SPEEDS = "SELECT ?speed WHERE { ?car <http://ex.org/speed> ?speed }";
+
+    private Database database;
+    private QueryExecutor executor;
+    private SubscriptionManager subscriptions;
+
+    @BeforeEach
+    void setUp() {
+        database = Database.DatabaseBuilder.aDatabase().withWriteMode(WriteMode.DELTA).build();
+        executor = new QueryExecutor("subscription", 1, 16, false);
+        subscriptions = SubscriptionManager.create(database, executor, 2, 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdown();
+        database.shutdown();
+    }
+
+    @Test
+    void sendsTheResultThenItsChanges() throws InterruptedException {
+        set(CAR, SPEED, 10);
+        Events events = new Events();
+        subscriptions.start(subscriptions.subscribe(SPEEDS, events));
+
+        String reset = events.next("reset");
+        assertTrue(reset.contains("\"value\":\"10\""), reset);
+        set(CAR, SPEED, 20);
+        String delta = events.next("delta");
+
+        assertTrue(delta.matches(".*\"added\":\\[\\{\"speed\":\\{[^]]*\"value\":\"20\".*\"removed\":\\[\\{\"speed\":\\{[^]]*\"value\":\"10\".*"), delta);
+    }
+
+    @Test
+    void ignoresChangesToPredicatesItDoesNotRead() throws InterruptedException {
+        Events events = new Events();
+        subscriptions.start(subscriptions.subscribe(SPEEDS, events));
+        events.next("reset");
+
+        set(CAR, NAME, 1);
+        database.flush();
+
+        assertNull(events.poll());
+        assertEquals(1, subscriptions.stats().evaluations());
+    }
+
+    @Test
+    void closesASubscriptionWhoseResultOutgrowsTheRowLimit() throws InterruptedException {
+        Events events = new Events();
+        subscriptions.start(subscriptions.subscribe(SPEEDS, events));
+        events.next("reset");
+
+        Model model = new LinkedHashModel();
+        for (int i = 0; i < 3; i++) {
+            model.add(Values.iri("http://ex.org/car" + i), SPEED, Values.literal(i));
+        }
+        database.set(model);
+
+        assertNotNull(events.next("close"));
+        assertEquals(0, subscriptions.stats().subscriptions());
+    }
+
+    @Test
+    void refusesBeyondTheSubscriptionLimitAndFreesSlots() {
+        SubscriptionManager.Subscription first = subscriptions.subscribe(SPEEDS, new Events());
+        subscriptions.subscribe(SPEEDS, new Events());
+
+        assertThrows(IllegalStateException.class, () -> subscriptions.subscribe(SPEEDS, new Events()));
+
+        subscriptions.unsubscribe(first);
+        subscriptions.unsubscribe(first);
+        subscriptions.subscribe(SPEEDS, new Events());
+        assertThrows(IllegalStateException.class, () -> subscriptions.subscribe(SPEEDS, new Events()));
+    }
+
+    @Test
+    void rejectsAnythingButSelectWithoutTakingASlot() {
+        assertThrows(IllegalArgumentException.class, () -> subscriptions.subscribe("ASK { ?s ?p ?o }", new Events()));
+        assertThrows(IllegalArgumentException.class, () -> subscriptions.subscribe("SELECT nonsense", new Events()));
+
+        subscriptions.subscribe(SPEEDS, new Events());
+        subscriptions.subscribe(SPEEDS, new Events());
+    }
+
+    private void set(IRI subject, IRI predicate, int value) {
+        Model model = new LinkedHashModel();
+        model.add(subject, predicate, Values.literal(value));
+        database.set(model);
+    }
+
+    private static final class Events implements SubscriptionManager.Sink {
+        private final BlockingQueue<List<String>> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public boolean send(String event, String json) {
+            events.add(List.of(event, json));
+            return true;
+        }
+
+        @Override
+        public void close(String reason) {
+            events.add(List.of("close", String.valueOf(reason)));
+        }
+
+        String next(String expected) throws InterruptedException {
+            List<String> event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(event, "no " + expected + " event");
+            assertEquals(expected, event.get(0), event.get(1));
+            return event.get(1);
+        }
+
+        List<String> poll() throws InterruptedException {
+            return events.poll(200, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.model.util.Values;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TextIndexTest {
+    private static final IRI LABEL = Values.iri("http://ex.org/label");
+    private static final IRI COMMENT = Values.iri("http://ex.org/comment");
+    private static final IRI OTHER = Values.iri("http://ex.org/other");
+    private static final IRI MERC = Values.iri("http://ex.org/merc");
+    private static final IRI FORD = Values.iri("http://ex.org/ford");
+
+    private final TextIndex index = new TextIndex(Set.of(LABEL, COMMENT));
+
+    @Test
+    void matchesWordPrefixesIgnoringCase() {
+        index.apply(added(statement(MERC, LABEL, "Mercedes-Benz"), statement(FORD, LABEL, "Ford Mondeo")));
+
+        assertEquals(Set.of(MERC), index.search("benz"));
+        assertEquals(Set.of(MERC), index.search("MERC"));
+        assertEquals(Set.of(FORD), index.search("mon"));
+        assertTrue(index.search("ercedes").isEmpty());
+    }
+
+    @Test
+    void needsEveryWordAcrossTheIndexedLiteralsOfASubject() {
+        index.apply(added(statement(MERC, LABEL, "Mercedes"), statement(MERC, COMMENT, "grey estate"),
+                statement(FORD, LABEL, "Ford"), statement(FORD, COMMENT, "red estate")));
+
+        assertEquals(Set.of(MERC), index.search("merc grey"));
+        assertEquals(Set.of(MERC, FORD), index.search("estate"));
+        assertTrue(index.search("ford grey").isEmpty());
+        assertTrue(index.search(" - ").isEmpty());
+    }
+
+    @Test
+    void ignoresOtherPredicatesAndNonLiterals() {
+        index.apply(new ChangeSet(1, List.of(statement(MERC, OTHER, "Mercedes"),
+                Values.getValueFactory().createStatement(FORD, LABEL, Values.iri("http://ex.org/Ford"))),
+                List.of(), Set.of(OTHER, LABEL)));
+
+        assertTrue(index.search("mercedes").isEmpty());
+        assertTrue(index.search("ford").isEmpty());
+    }
+
+    @Test
+    void forgetsAWordOnlyWhenNoStatementOfTheSubjectHasIt() {
+        Statement label = statement(MERC, LABEL, "Grey Mercedes");
+        index.apply(added(label, statement(MERC, COMMENT, "grey")));
+
+        index.apply(new ChangeSet(2, List.of(), List.of(label), Set.of(LABEL)));
+
+        assertEquals(Set.of(MERC), index.search("grey"));
+        assertTrue(index.search("mercedes").isEmpty());
+    }
+
+    @Test
+    void answersTheMagicPredicateWithAString() {
+        index.apply(added(statement(MERC, LABEL, "Mercedes")));
+
+        assertEquals(Set.of(MERC), Set.copyOf(index.subjects(List.of(Values.literal("merc")))));
+        assertThrows(IllegalArgumentException.class, () -> index.subjects(List.of(MERC)));
+    }
+
+    @Test
+    void searchesTheStoreThroughSparql() {
+        Database database = Database.DatabaseBuilder.aDatabase().withMagicPredicate(new TextIndex(Set.of(LABEL))).build();
+        try {
+            Model model = new LinkedHashModel();
+            model.add(MERC, LABEL, Values.literal("Mercedes-Benz"));
+            model.add(FORD, LABEL, Values.literal("Ford"));
+            database.set(model);
+            database.flush();
+
+            List<BindingSet> rows = database.select("SELECT ?car WHERE { ?car <" + TextIndex.SEARCH + "> \"benz\" }", 0);
+
+            assertEquals(1, rows.size());
+            assertEquals(MERC, rows.getFirst().getValue("car"));
+        } finally {
+            database.shutdown();
+        }
+    }
+
+    private static ChangeSet added(Statement... statements) {
+        return new ChangeSet(1, List.of(statements), List.of(), Set.of(LABEL, COMMENT));
+    }
+
+    private static Statement statement(IRI subject, IRI predicate, String label) {
+        return Values.getValueFactory().createStatement(subject, predicate, Values.literal(label));
+    }
+}
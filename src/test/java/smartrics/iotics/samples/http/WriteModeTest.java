@@ -0,0 +1,133 @@
+package smartrics.iotics.samples.http;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.model.util.Values;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteModeTest {
+    private static final IRI CAR = Values.iri("http://ex.org/car");
+    private static final IRI NAME = Values.iri("http://ex.org/name");
+    private static final IRI SPEED = Values.iri("http://ex.org/speed");
+
+    private SailRepository repository;
+    private RepositoryConnection conn;
+
+    @BeforeEach
+    void setUp() {
+        repository = new SailRepository(new MemoryStore());
+        repository.init();
+        conn = repository.getConnection();
+        conn.add(CAR, NAME, Values.literal("car"));
+        conn.add(CAR, SPEED, Values.literal(10));
+    }
+
+    @AfterEach
+    void tearDown() {
+        conn.close();
+        repository.shutDown();
+    }
+
+    @Test
+    void replaceDropsEverythingOfTheSubject() {
+        WriteMode.Changes changes = apply(WriteMode.REPLACE, model(20));
+
+        assertEquals(new WriteMode.Changes(2, 2, 0), changes);
+        assertTrue(conn.hasStatement(CAR, SPEED, Values.literal(20), false));
+        assertFalse(conn.hasStatement(CAR, SPEED, Values.literal(10), false));
+        assertEquals(2, conn.size());
+    }
+
+    @Test
+    void deltaOnlyTouchesWhatChanged() {
+        WriteMode.Changes changes = apply(WriteMode.DELTA, model(20));
+
+        assertEquals(new WriteMode.Changes(1, 1, 1), changes);
+        assertTrue(conn.hasStatement(CAR, NAME, Values.literal("car"), false));
+        assertTrue(conn.hasStatement(CAR, SPEED, Values.literal(20), false));
+        assertEquals(2, conn.size());
+    }
+
+    @Test
+    void deltaOfAnUnchangedModelIsANoOp() {
+        WriteMode.Changes changes = apply(WriteMode.DELTA, model(10));
+
+        assertEquals(new WriteMode.Changes(0, 0, 2), changes);
+        assertEquals(2, conn.size());
+    }
+
+    @Test
+    void deltaRemovesStatementsMissingFromTheModel() {
+        Model model = new LinkedHashModel();
+        model.add(CAR, NAME, Values.literal("car"));
+
+        WriteMode.Changes changes = apply(WriteMode.DELTA, model);
+
+        assertEquals(new WriteMode.Changes(1, 0, 1), changes);
+        assertFalse(conn.hasStatement(CAR, SPEED, null, false));
+    }
+
+    @Test
+    void graphReplacesTheWholeGraph() {
+        IRI feed = Values.iri("http://ex.org/feed");
+        apply(WriteMode.GRAPH, feed, model(20));
+        IRI other = Values.iri("http://ex.org/other");
+        Model next = new LinkedHashModel();
+        next.add(other, NAME, Values.literal("other"));
+
+        WriteMode.Changes changes = apply(WriteMode.GRAPH, feed, next);
+
+        assertEquals(new WriteMode.Changes(2, 1, 0), changes);
+        assertEquals(1, conn.size(feed));
+        assertTrue(conn.hasStatement(other, NAME, Values.literal("other"), false, feed));
+        assertFalse(conn.hasStatement(CAR, SPEED, Values.literal(20), false, feed));
+        // the default graph is left alone
+        assertTrue(conn.hasStatement(CAR, SPEED, Values.literal(10), false));
+    }
+
+    @Test
+    void graphDropsTheGraphOnAnEmptyModel() {
+        IRI feed = Values.iri("http://ex.org/feed");
+        apply(WriteMode.GRAPH, feed, model(20));
+
+        apply(WriteMode.GRAPH, feed, new LinkedHashModel());
+
+        assertEquals(0, conn.size(feed));
+    }
+
+    @Test
+    void graphWithoutAGraphFallsBackToReplace() {
+        WriteMode.Changes changes = apply(WriteMode.GRAPH, model(20));
+
+        assertEquals(new WriteMode.Changes(2, 2, 0), changes);
+        assertFalse(conn.hasStatement(CAR, SPEED, Values.literal(10), false));
+    }
+
+    private WriteMode.Changes apply(WriteMode mode, Model model) {
+        return apply(mode, null, model);
+    }
+
+    private WriteMode.Changes apply(WriteMode mode, IRI graph, Model model) {
+        conn.begin();
+        WriteMode.Changes changes = mode.apply(conn, graph, model);
+        conn.commit();
+        return changes;
+    }
+
+    private static Model model(int speed) {
+        Model model = new LinkedHashModel();
+        model.add(CAR, NAME, Values.literal("car"));
+        model.add(CAR, SPEED, Values.literal(speed));
+        return model;
+    }
+}